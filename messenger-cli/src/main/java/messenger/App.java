@@ -23,8 +23,15 @@ import com.ditavision.messengerengine.mmp.response.MMPStatusReportDetail;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -39,6 +46,11 @@ import java.util.Optional;
 public class App {
     
     static Configuration CONFIG = new Configuration();
+    static Path STATUS_CACHE_DIR = StatusCache.DEFAULT_DIR;
+    static Path IDEMPOTENCY_INDEX_FILE = IdempotencyIndex.DEFAULT_FILE;
+    static final String AUTO_IDEMPOTENCY_KEY = "auto";
+    static final long DEFAULT_IDEMPOTENCY_WINDOW_SECONDS = 3600;
+    static final String NOT_ACCEPTED = "none";
 
     public static void main(String[] args) {
         if (args == null || args.length < 1) {
@@ -48,6 +60,7 @@ public class App {
         Map<String, String> arguments = arrayToMap(args);
         
         Arguments action = argumentsToAction(arguments);
+        enableTrace(arguments.get(Arguments.TRACE.argumentName()), arguments.get(Arguments.TRACE_SLOW.argumentName()));
         
         switch (action) {
             case HELP_ACTION:
@@ -56,6 +69,10 @@ public class App {
                 } else {
                     if (arguments.containsKey(Arguments.STATUS_ACTION.argumentName())) {
                         statusUsage();
+                    } else if (arguments.containsKey(Arguments.SCHEDULE_ACTION.argumentName())) {
+                        scheduleUsage();
+                    } else if (arguments.containsKey(Arguments.SETTLE_ACTION.argumentName())) {
+                        settleUsage();
                     } else {
                         sendUsage();
                     }
@@ -72,15 +89,48 @@ public class App {
                         arguments.get(Arguments.SERVER.argumentName()), 
                         arguments.get(Arguments.USER.argumentName()), 
                         arguments.get(Arguments.PASSWORD.argumentName()),
-                        arguments.get(Arguments.MESSAGE_ID.argumentName()));
+                        arguments.get(Arguments.MESSAGE_ID.argumentName()),
+                        arguments.get(Arguments.STATUS_TTL.argumentName()));
                 break;
-            default:
-                sendMessage(
+            case SCHEDULE_ACTION:
+                runScheduler(
                         arguments.get(Arguments.SERVER.argumentName()), 
                         arguments.get(Arguments.USER.argumentName()), 
                         arguments.get(Arguments.PASSWORD.argumentName()),
-                        arguments.get(Arguments.MESSAGE.argumentName()),
-                        arguments.get(Arguments.TO.argumentName()));
+                        arguments.get(Arguments.SCHEDULE_FILE.argumentName()));
+                break;
+            case SETTLE_ACTION:
+                settle(
+                        arguments.get(Arguments.MESSAGE_ID.argumentName()),
+                        arguments.get(Arguments.IDEMPOTENCY_KEY.argumentName()),
+                        arguments.get(Arguments.SCHEDULE_FILE.argumentName()));
+                break;
+            default:
+                if (arguments.containsKey(Arguments.AT.argumentName()) || arguments.containsKey(Arguments.BATCH.argumentName())) {
+                    if (!scheduleArguments(arguments)) {
+                        break;
+                    }
+                    if (arguments.containsKey(Arguments.BATCH.argumentName())) {
+                        scheduleBatch(
+                                arguments.get(Arguments.BATCH.argumentName()),
+                                arguments.get(Arguments.SCHEDULE_FILE.argumentName()));
+                    } else {
+                        scheduleMessage(
+                                arguments.get(Arguments.AT.argumentName()),
+                                arguments.get(Arguments.SCHEDULE_FILE.argumentName()),
+                                arguments.get(Arguments.MESSAGE.argumentName()),
+                                arguments.get(Arguments.TO.argumentName()));
+                    }
+                } else {
+                    sendMessage(
+                            arguments.get(Arguments.SERVER.argumentName()), 
+                            arguments.get(Arguments.USER.argumentName()), 
+                            arguments.get(Arguments.PASSWORD.argumentName()),
+                            arguments.get(Arguments.MESSAGE.argumentName()),
+                            arguments.get(Arguments.TO.argumentName()),
+                            arguments.get(Arguments.IDEMPOTENCY_KEY.argumentName()),
+                            arguments.get(Arguments.IDEMPOTENCY_WINDOW.argumentName()));
+                }
                 break;
         }
         exit(0);
@@ -93,7 +143,7 @@ public class App {
         MessengerEngine engine = new MessengerEngine();
         System.out.printf("Trying to register user '%s' with email '%s' at server '%s'\n", user, email, server);
         try {
-            engine.startRegistration(server, user, email);
+            Trace.run("startRegistration", () -> engine.startRegistration(server, user, email));
         } catch (MessengerEngineException ex) {
             System.out.println("Error during registration: " + ex.getCode() + " - " + ex.getMessage());
             exit(1);
@@ -101,7 +151,7 @@ public class App {
         System.out.print("Registration initialization succeeded, enter pincode (received by SMS): ");
         String pincode = readInput();
         try {
-            String password = engine.verifyRegistration(server, user, pincode);
+            String password = Trace.call("verifyRegistration", () -> engine.verifyRegistration(server, user, pincode));
             System.out.println("Password to be used for sending messages: " + password);
         } catch (MessengerEngineException ex) {
             System.out.println("Error during pincode verification: " + ex.getCode() + " - " + ex.getMessage());
@@ -109,38 +159,314 @@ public class App {
         }
     }
     
-    static void sendMessage(String serverUrl, String userMSISDN, String userPassword, String message, String recipients) {
+    static void sendMessage(String serverUrl, String userMSISDN, String userPassword, String message, String recipients,
+            String idempotencyKey, String idempotencyWindow) {
         String user = getValue(userMSISDN, CONFIG.getMsisdn(), "MSISDN");
         String password = getValue(userPassword, CONFIG.getPassword(), "password");
         String msg = getValue(message, null, "message");
         String to = getValue(recipients, null, "recipient(s) (comma separated)");
         List<String> toList = split(to);
         String server = nullOrEmpty(serverUrl) ? CONFIG.getUrl() : serverUrl;
+        String key = idempotencyKey(idempotencyKey, user, msg, toList);
+        long window;
+        try {
+            window = idempotencyWindowMillis(idempotencyKey, idempotencyWindow);
+        } catch (NumberFormatException ex) {
+            System.out.println("Error parsing the idempotency window: " + ex.getMessage());
+            exit(1);
+            return;
+        }
+        IdempotencyIndex index = new IdempotencyIndex(IDEMPOTENCY_INDEX_FILE);
+        if (key != null) {
+            try {
+                IdempotencyIndex.Entry earlier = index.reserve(key, System.currentTimeMillis(), window);
+                if (earlier != null && earlier.isSent()) {
+                    System.out.printf("Message already sent at '%s' with idempotency key '%s'\n", Instant.ofEpochMilli(earlier.getMillis()), key);
+                    System.out.println("Send message skipped. Message id: " + earlier.getMessageId());
+                    return;
+                }
+                if (earlier != null) {
+                    System.out.printf("A send with idempotency key '%s' started at '%s' did not complete, it is unknown whether it was accepted.\n", key, Instant.ofEpochMilli(earlier.getMillis()));
+                    System.out.println("Look up its message id and settle the key with --settle -id MESSAGE_ID|none --idempotency-key " + key);
+                    exit(1);
+                    return;
+                }
+                System.out.printf("Using idempotency key '%s'\n", key);
+            } catch (IOException ex) {
+                System.out.println("Error reading the idempotency index: " + ex);
+                exit(1);
+                return;
+            }
+        }
         System.out.printf("Trying to send message '%s' from user '%s' to recipients '%s' at server '%s'\n", msg, user, to, server);
         String msgId = null;
         try {
-            msgId = new MessengerEngine().sendMessage(server, user, password, msg, toList);
+            MessengerEngine engine = new MessengerEngine();
+            msgId = Trace.call("sendMessage", () -> engine.sendMessage(server, user, password, msg, toList));
         } catch (MessengerEngineException ex) {
             System.out.println("Error during sending message: " + ex.getCode() + " - " + ex.getMessage());
+            if (key != null && IdempotencyIndex.notAccepted(ex, IdempotencyIndex.rejectedCodes())) {
+                try {
+                    index.release(key);
+                } catch (IOException ioe) {
+                    System.out.println("Error releasing the idempotency key: " + ioe);
+                }
+            } else if (key != null) {
+                System.out.printf("It is unknown whether the message was accepted, idempotency key '%s' stays reserved.\n", key);
+                System.out.println("Look up its message id and settle the key with --settle -id MESSAGE_ID|none --idempotency-key " + key);
+            }
             exit(1);
+            return;
+        }
+        if (key != null) {
+            try {
+                index.record(key, msgId, System.currentTimeMillis());
+            } catch (IOException ex) {
+                System.out.println("Error recording the idempotency key: " + ex);
+            }
         }
         System.out.println("Send message succeeded. Message id: " + msgId);
     }
     
-    static void getStatus(String serverUrl, String userMSISDN, String userPassword, String messageIds) {
+    /**
+     * The given key, a key derived from the sender, message and recipients when 'auto' is given,
+     * or null when no key is given.
+     */
+    static String idempotencyKey(String key, String user, String message, List<String> recipients) {
+        if (nullOrEmpty(key)) {
+            return null;
+        }
+        if (!AUTO_IDEMPOTENCY_KEY.equals(key)) {
+            return key;
+        }
+        List<String> sorted = new ArrayList<>(recipients);
+        Collections.sort(sorted);
+        StringBuilder digest = new StringBuilder(AUTO_IDEMPOTENCY_KEY + ":");
+        for (byte b : IdempotencyIndex.digest(user + "\n" + String.join(",", sorted) + "\n" + message)) {
+            digest.append(String.format("%02x", b));
+        }
+        return digest.toString();
+    }
+
+    /**
+     * How long an earlier send with the same key prevents a new one: the time window for the 'auto' key, forever for any other key.
+     */
+    static long idempotencyWindowMillis(String key, String windowSeconds) {
+        if (!AUTO_IDEMPOTENCY_KEY.equals(key)) {
+            return Long.MAX_VALUE;
+        }
+        long window = nullOrEmpty(windowSeconds) ? DEFAULT_IDEMPOTENCY_WINDOW_SECONDS : Long.parseLong(windowSeconds);
+        if (window <= 0 || window > Long.MAX_VALUE / 1000) {
+            throw new NumberFormatException("Window out of range: " + windowSeconds);
+        }
+        return window * 1000;
+    }
+    
+    static void scheduleMessage(String sendAt, String scheduleFile, String message, String recipients) {
+        String msg = getValue(message, null, "message");
+        String to = getValue(recipients, null, "recipient(s) (comma separated)");
+        List<String> toList = split(to);
+        long due;
+        try {
+            due = Schedule.dueMillis(sendAt, System.currentTimeMillis());
+        } catch (IllegalArgumentException ex) {
+            System.out.println("Error scheduling message: " + ex.getMessage());
+            exit(1);
+            return;
+        }
+        Schedule schedule = new Schedule(scheduleFile(scheduleFile));
+        System.out.printf("Trying to schedule message '%s' to recipients '%s' at '%s' in '%s'\n", msg, to, Instant.ofEpochMilli(due), schedule.getFile());
+        ScheduledMessage scheduled = null;
+        try {
+            scheduled = schedule.add(due, msg, toList);
+        } catch (IOException ex) {
+            System.out.println("Error during scheduling message: " + ex);
+            exit(1);
+            return;
+        }
+        System.out.println("Schedule message succeeded. Schedule id: " + scheduled.getId());
+    }
+    
+    static void scheduleBatch(String batchFile, String scheduleFile) {
+        Path batch = Paths.get(getValue(batchFile, null, "batch file"));
+        long now = System.currentTimeMillis();
+        List<ScheduledMessage> messages = new ArrayList<>();
+        try {
+            List<String> lines = Files.readAllLines(batch, StandardCharsets.UTF_8);
+            for (int i = 0; i < lines.size(); i++) {
+                String line = lines.get(i);
+                if (line.trim().isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    messages.add(Schedule.parseEntry(line, now));
+                } catch (IllegalArgumentException ex) {
+                    System.out.printf("Error scheduling messages: line %d of '%s', %s\n", i + 1, batch, ex.getMessage());
+                    exit(1);
+                    return;
+                }
+            }
+        } catch (IOException ex) {
+            System.out.println("Error reading the batch file: " + ex);
+            exit(1);
+            return;
+        }
+        Schedule schedule = new Schedule(scheduleFile(scheduleFile));
+        System.out.printf("Trying to schedule %d message(s) from '%s' in '%s'\n", messages.size(), batch, schedule.getFile());
+        try {
+            schedule.addAll(messages);
+        } catch (IOException ex) {
+            System.out.println("Error during scheduling messages: " + ex);
+            exit(1);
+            return;
+        }
+        System.out.println("Schedule messages succeeded. Scheduled messages: " + messages.size());
+    }
+    
+    /**
+     * Scheduled messages are sent by the --schedule process with its own server, user and password.
+     */
+    static boolean scheduleArguments(Map<String, String> arguments) {
+        Arguments[] unsupported = {Arguments.SERVER, Arguments.USER, Arguments.PASSWORD, Arguments.IDEMPOTENCY_KEY};
+        Arguments schedule = arguments.containsKey(Arguments.BATCH.argumentName()) ? Arguments.BATCH : Arguments.AT;
+        for (Arguments argument : unsupported) {
+            if (arguments.containsKey(argument.argumentName())) {
+                System.out.println("Error scheduling message: " + argument.argumentName() + " cannot be combined with "
+                        + schedule.argumentName() + ", scheduled messages are sent with the server, user and password of the "
+                        + Arguments.SCHEDULE_ACTION.argumentName() + " process.");
+                exit(1);
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    static void runScheduler(String serverUrl, String userMSISDN, String userPassword, String scheduleFile) {
+        String user = getValue(userMSISDN, CONFIG.getMsisdn(), "MSISDN");
+        String password = getValue(userPassword, CONFIG.getPassword(), "password");
+        String server = nullOrEmpty(serverUrl) ? CONFIG.getUrl() : serverUrl;
+        Schedule schedule = new Schedule(scheduleFile(scheduleFile));
+        System.out.printf("Sending the scheduled messages of '%s' from user '%s' at server '%s'\n", schedule.getFile(), user, server);
+        try {
+            IdempotencyIndex index = new IdempotencyIndex(IDEMPOTENCY_INDEX_FILE);
+            new Scheduler(schedule, index, new MessengerEngine(), server, user, password).run();
+        } catch (IOException ex) {
+            System.out.println("Error running the scheduler: " + ex);
+            exit(1);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    static void settle(String messageId, String idempotencyKey, String scheduleFile) {
+        Schedule schedule = new Schedule(scheduleFile(scheduleFile));
+        if (nullOrEmpty(idempotencyKey)) {
+            listUnknown(schedule);
+            return;
+        }
+        String msgId = getValue(messageId, null, "message id, or '" + NOT_ACCEPTED + "' when the message was not accepted");
+        IdempotencyIndex index = new IdempotencyIndex(IDEMPOTENCY_INDEX_FILE);
+        try {
+            IdempotencyIndex.Entry earlier = index.lookup(idempotencyKey);
+            if (earlier == null || !earlier.isPending()) {
+                System.out.printf("No send of which the outcome is unknown found with idempotency key '%s'\n", idempotencyKey);
+                exit(1);
+                return;
+            }
+            String scheduledId = Scheduler.scheduledId(idempotencyKey);
+            ScheduledMessage scheduled = null;
+            if (scheduledId != null) {
+                scheduled = schedule.unknown().stream().filter(m -> m.getId().equals(scheduledId)).findFirst().orElse(null);
+            }
+            if (NOT_ACCEPTED.equals(msgId)) {
+                index.release(idempotencyKey);
+                if (scheduled != null) {
+                    schedule.addAgain(scheduled);
+                    System.out.printf("Scheduled message %s will be sent again by the process started with --schedule\n", scheduledId);
+                }
+                System.out.printf("Idempotency key '%s' released\n", idempotencyKey);
+            } else {
+                index.record(idempotencyKey, msgId, System.currentTimeMillis());
+                if (scheduled != null) {
+                    schedule.markSent(scheduledId, msgId);
+                }
+                System.out.printf("Idempotency key '%s' settled. Message id: %s\n", idempotencyKey, msgId);
+            }
+        } catch (IOException ex) {
+            System.out.println("Error settling the idempotency key: " + ex);
+            exit(1);
+        }
+    }
+    
+    static void listUnknown(Schedule schedule) {
+        Collection<ScheduledMessage> unknown;
+        try {
+            unknown = schedule.unknown();
+        } catch (IOException ex) {
+            System.out.println("Error reading the schedule: " + ex);
+            exit(1);
+            return;
+        }
+        System.out.printf("\nFound %d scheduled message(s) of which it is unknown whether they were sent in '%s'.\n\n", unknown.size(), schedule.getFile());
+        for (ScheduledMessage scheduled : unknown) {
+            System.out.format("%-55s%-25s%-30s%s\n",
+                    Scheduler.idempotencyKey(scheduled),
+                    Instant.ofEpochMilli(scheduled.getDueMillis()),
+                    String.join(",", scheduled.getRecipients()),
+                    scheduled.getMessage());
+        }
+        System.out.println("");
+    }
+    
+    static void getStatus(String serverUrl, String userMSISDN, String userPassword, String messageIds, String cacheTtl) {
         String user = getValue(userMSISDN, CONFIG.getMsisdn(), "MSISDN");
         String password = getValue(userPassword, CONFIG.getPassword(), "password");
         String ids = getValue(messageIds, null, "message id(s) (Comma-separated)");
         List<String> idList = split(ids);
         String server = nullOrEmpty(serverUrl) ? CONFIG.getUrl() : serverUrl;
-        System.out.printf("Trying to retrieve the status for message id(s) '%s' sent by user '%s' at server '%s'\n", ids, user, server);
-        List<MMPStatusReportDetail> statusReports = new ArrayList<>();
+        long ttl;
         try {
-            statusReports = new MessengerEngine().statusReports(server, user, password, idList);
-        } catch (MessengerEngineException ex) {
-            System.out.println("Error requesting a status report: " + ex.getCode() + " - " + ex.getMessage());
+            ttl = nullOrEmpty(cacheTtl) ? StatusCache.DEFAULT_TTL_SECONDS : Long.parseLong(cacheTtl);
+        } catch (NumberFormatException ex) {
+            System.out.println("Error parsing the cache TTL: " + ex.getMessage());
             exit(1);
+            return;
+        }
+        StatusCache cache = new StatusCache(StatusCache.file(STATUS_CACHE_DIR, server, user), ttl * 1000, StatusCache.MAX_IN_FLIGHT, StatusCache.finalStatuses());
+        try {
+            cache.load();
+        } catch (IOException ex) {
+            System.out.println("Ignoring the status cache: " + ex);
+        }
+        long now = System.currentTimeMillis();
+        List<MMPStatusReportDetail> statusReports = new ArrayList<>();
+        List<String> inFlight = new ArrayList<>();
+        for (String id : idList) {
+            MMPStatusReportDetail cached = cache.get(id, now);
+            if (cached == null) {
+                inFlight.add(id);
+            } else {
+                statusReports.add(cached);
+            }
+        }
+        if (!inFlight.isEmpty()) {
+            System.out.printf("Trying to retrieve the status for message id(s) '%s' sent by user '%s' at server '%s'\n", String.join(",", inFlight), user, server);
+            try {
+                MessengerEngine engine = new MessengerEngine();
+                List<MMPStatusReportDetail> fetched = Trace.call("statusReports", () -> engine.statusReports(server, user, password, inFlight));
+                fetched.forEach(report -> cache.put(report, now));
+                statusReports.addAll(fetched);
+            } catch (MessengerEngineException ex) {
+                System.out.println("Error requesting a status report: " + ex.getCode() + " - " + ex.getMessage());
+                exit(1);
+            }
+            try {
+                cache.save(now);
+            } catch (IOException ex) {
+                System.out.println("Error saving the status cache: " + ex);
+            }
         }
+        System.out.printf("Status cache: %d hit(s), %d miss(es)\n", cache.getHits(), cache.getMisses());
         System.out.printf("\nFound %d message(s) according the given id(s).\n\n", statusReports.size());
         System.out.format("%-15s%-15s%-15s%s\n", "MessageId", "Recipient", "StatusId", "Status");
         System.out.format("%-15s%-15s%-15s%s\n", "---------", "---------", "--------", "------");
@@ -161,6 +487,25 @@ public class App {
         return to == null ? null : new ArrayList(Arrays.asList(to.split(",")));
     }
     
+    static void enableTrace(String traceFile, String slowMillis) {
+        if (nullOrEmpty(traceFile)) {
+            return;
+        }
+        try {
+            Trace.enable(Paths.get(traceFile), nullOrEmpty(slowMillis) ? Trace.DEFAULT_SLOW_MILLIS : Long.parseLong(slowMillis));
+        } catch (NumberFormatException ex) {
+            System.out.println("Error parsing the slow threshold: " + ex.getMessage());
+            exit(1);
+        } catch (IOException ex) {
+            System.out.println("Error opening the trace log: " + ex);
+            exit(1);
+        }
+    }
+    
+    static Path scheduleFile(String file) {
+        return nullOrEmpty(file) ? Schedule.DEFAULT_FILE : Paths.get(file);
+    }
+    
     static String getValue(String originalValue, String defaultValue, String name) {
         String result = nullOrEmpty(originalValue) ? defaultValue : originalValue;
         if (nullOrEmpty(result)) {
@@ -198,6 +543,20 @@ public class App {
             arguments.put(status.get(), "");
         }
         
+        Optional<String> schedule = Arrays.stream(args).
+                filter(a -> a.equals(Arguments.SCHEDULE_ACTION.argumentName())).
+                findFirst();
+        if (schedule.isPresent()) {
+            arguments.put(schedule.get(), "");
+        }
+        
+        Optional<String> settle = Arrays.stream(args).
+                filter(a -> a.equals(Arguments.SETTLE_ACTION.argumentName())).
+                findFirst();
+        if (settle.isPresent()) {
+            arguments.put(settle.get(), "");
+        }
+        
         Optional<String> help = Arrays.stream(args).
                 filter(a -> a.equals(Arguments.HELP_ACTION.argumentName())).
                 findFirst();
@@ -219,6 +578,12 @@ public class App {
         if (arguments.containsKey(Arguments.STATUS_ACTION.argumentName())) {
             return Arguments.STATUS_ACTION;
         }
+        if (arguments.containsKey(Arguments.SCHEDULE_ACTION.argumentName())) {
+            return Arguments.SCHEDULE_ACTION;
+        }
+        if (arguments.containsKey(Arguments.SETTLE_ACTION.argumentName())) {
+            return Arguments.SETTLE_ACTION;
+        }
         return Arguments.SEND_ACTION;
     }
     
@@ -228,6 +593,10 @@ public class App {
         System.out.println("java -jar messenger-cli.jar --init -h   : for more directions to initialize your phone number with a MMP server.");
         System.out.println("java -jar messenger-cli.jar --send -h   : for more directions to send messages.");
         System.out.println("java -jar messenger-cli.jar --status -h : for more directions to get the status for a specific message id.");
+        System.out.println("java -jar messenger-cli.jar --schedule -h : for more directions to send scheduled messages.");
+        System.out.println("java -jar messenger-cli.jar --settle -h : for more directions to settle sends of which it is unknown whether they were accepted.");
+        System.out.println("\nAdd --trace TRACE_FILE [-slow MILLIS] to any of them to log an event with the timings of every call to the server.");
+        System.out.println("Only calls taking at least MILLIS (default " + Trace.DEFAULT_SLOW_MILLIS + ") are logged with the timings per request.");
     }
     
     static void registerUsage() {
@@ -246,7 +615,9 @@ public class App {
     static void sendUsage() {
         System.out.println("Usage:");
         System.out.println("------");
-        System.out.println("java -jar messenger-cli.jar [--send] [-s MMP_SERVER_URI] [-u USER_PHONE_NR] [-p PASSWORD] -m MESSAGE -t TO_RECEPIENTS\n");
+        System.out.println("java -jar messenger-cli.jar [--send] [-s MMP_SERVER_URI] [-u USER_PHONE_NR] [-p PASSWORD] -m MESSAGE -t TO_RECEPIENTS [--idempotency-key KEY [-window SECONDS]]\n"
+                + "java -jar messenger-cli.jar [--send] --at TIME [-f SCHEDULE_FILE] -m MESSAGE -t TO_RECEPIENTS\n"
+                + "java -jar messenger-cli.jar [--send] --batch BATCH_FILE [-f SCHEDULE_FILE]\n");
         System.out.println("-s: Optional MMP server uri, default is '" + CONFIG.getUrl() + "'.");
         System.out.println("    This can also be set via an environment variable named '" + Configuration.URL_ENV_KEY + "'\n"); 
         System.out.println("-u: Optional phone number for which a registration will be done.");
@@ -258,12 +629,31 @@ public class App {
         System.out.println("-m: The message to be sent, encapsulated between double quotes\n");
         System.out.println("-t: Phone number(s) to which the message will be sent.");
         System.out.println("    Comma-seperated for multiple recipients. E.g. +32495123456,+32495654321\n");
+        System.out.println("--idempotency-key: Optional key to send the message only once, a repeated send with the same key");
+        System.out.println("      returns the id of the message sent the first time. Use 'auto' to derive the key from");
+        System.out.println("      the sender, message and recipients within a time window.");
+        System.out.println("      A failed send only frees the key when the server could not be reached or the error code is");
+        System.out.println("      listed in a comma-separated environment variable named '" + IdempotencyIndex.REJECTED_CODES_ENV_KEY + "'.");
+        System.out.println("      Otherwise the key stays reserved until it is settled with --settle.");
+        System.out.println("      Keys are kept in '" + IdempotencyIndex.DEFAULT_FILE + "', which takes 256 to 512 bytes of disk per key.");
+        System.out.println("      An 'auto' key is dropped some time after its window has passed, other keys are kept.\n");
+        System.out.println("-window: Optional time window in seconds for the 'auto' idempotency key, default is " + DEFAULT_IDEMPOTENCY_WINDOW_SECONDS + ".\n");
+        System.out.println("--at: Optional ISO time at which the message will be sent, e.g. 2015-12-24T18:00:00+01:00.");
+        System.out.println("      Without an offset the local time zone is used. The message is added to the schedule");
+        System.out.println("      and will be sent by the process started with --schedule, with its server, user and password.");
+        System.out.println("      Cannot be combined with -s, -u, -p and --idempotency-key.\n");
+        System.out.println("--batch: Schedules all messages of a file at once, one per line with the ISO time to send at,");
+        System.out.println("      the comma-separated recipients and the message, separated by tabs. E.g.");
+        System.out.println("      2015-12-24T18:00:00+01:00<TAB>+32495123456,+32495654321<TAB>Merry Christmas");
+        System.out.println("      Empty lines and lines starting with # are skipped. Nothing is scheduled when a line is invalid.");
+        System.out.println("      Cannot be combined with -s, -u, -p and --idempotency-key.\n");
+        System.out.println("-f: Optional schedule file, default is '" + Schedule.DEFAULT_FILE + "'.\n");
     }
     
     static void statusUsage() {
         System.out.println("Usage:");
         System.out.println("------");
-        System.out.println("java -jar messenger-cli.jar --status [-s MMP_SERVER_URI] [-u USER_PHONE_NR] [-p PASSWORD] -id MESSAGE_IDS\n");
+        System.out.println("java -jar messenger-cli.jar --status [-s MMP_SERVER_URI] [-u USER_PHONE_NR] [-p PASSWORD] -id MESSAGE_IDS [-ttl SECONDS]\n");
         System.out.println("-s:  Optional MMP server uri, default is '" + CONFIG.getUrl() + "'.");
         System.out.println("     This can also be set via an environment variable named '" + Configuration.URL_ENV_KEY + "'\n"); 
         System.out.println("-u:  Optional phone number for which a registration will be done.");
@@ -274,6 +664,42 @@ public class App {
         System.out.println("     If missing, it will be requested as input.\n");
         System.out.println("-id: The message id to get the status for (returned by the send operation)");
         System.out.println("     Comma-seperated for multiple message ids. E.g. 123456,123457\n");
+        System.out.println("-ttl: Optional number of seconds a status which is not final yet is cached, default is " + StatusCache.DEFAULT_TTL_SECONDS + ".");
+        System.out.println("      Final statuses are cached permanently in '" + StatusCache.DEFAULT_DIR + "', per server and user.");
+        System.out.println("      They can be set via a comma-separated environment variable named '" + StatusCache.FINAL_STATUSES_ENV_KEY + "',");
+        System.out.println("      default is '" + String.join(",", StatusCache.DEFAULT_FINAL_STATUSES) + "'.\n");
+    }
+    
+    static void settleUsage() {
+        System.out.println("Usage:");
+        System.out.println("------");
+        System.out.println("java -jar messenger-cli.jar --settle [-f SCHEDULE_FILE]\n"
+                + "java -jar messenger-cli.jar --settle -id MESSAGE_ID --idempotency-key KEY [-f SCHEDULE_FILE]\n");
+        System.out.println("Without an idempotency key, lists the scheduled messages of which it is unknown whether they were sent.");
+        System.out.println("A send with an idempotency key which may have been accepted keeps the key reserved, so it is not repeated.");
+        System.out.println("Once its message id is known, e.g. via --status, settle the key to record the outcome.\n");
+        System.out.println("-id: The message id of the send, or '" + NOT_ACCEPTED + "' when the message was not accepted.");
+        System.out.println("     A scheduled message settled with '" + NOT_ACCEPTED + "' is sent again by the process started with --schedule.\n");
+        System.out.println("--idempotency-key: The key of the send, as printed when it failed or listed above.\n");
+        System.out.println("-f: Optional schedule file, default is '" + Schedule.DEFAULT_FILE + "'.\n");
+    }
+    
+    static void scheduleUsage() {
+        System.out.println("Usage:");
+        System.out.println("------");
+        System.out.println("java -jar messenger-cli.jar --schedule [-s MMP_SERVER_URI] [-u USER_PHONE_NR] [-p PASSWORD] [-f SCHEDULE_FILE]\n");
+        System.out.println("Keeps running and sends the messages scheduled with --send --at when they are due.");
+        System.out.println("A message which cannot be sent is retried " + (Scheduler.MAX_ATTEMPTS - 1) + " times, the first time after "
+                + Scheduler.RETRY_DELAY_MILLIS / 1000 + " seconds and doubling the delay each time.\n");
+        System.out.println("-s: Optional MMP server uri, default is '" + CONFIG.getUrl() + "'.");
+        System.out.println("    This can also be set via an environment variable named '" + Configuration.URL_ENV_KEY + "'\n"); 
+        System.out.println("-u: Optional phone number from which the messages will be sent.");
+        System.out.println("    This can also be set via an environment variable named '" + Configuration.MSISDN_ENV_KEY + "'.");
+        System.out.println("    If missing, it will be requested as input.\n");
+        System.out.println("-p: Optional password (received during initialisation).");
+        System.out.println("    This can also be set via an environment variable named '" + Configuration.PWD_ENV_KEY + "'.");
+        System.out.println("    If missing, it will be requested as input.\n");
+        System.out.println("-f: Optional schedule file, default is '" + Schedule.DEFAULT_FILE + "'.\n");
     }
     
     static void exit(int code) {
@@ -28,10 +28,20 @@ public enum Arguments {
     TO("-t"),
     SERVER("-s"),
     MESSAGE_ID("-id"),
+    STATUS_TTL("-ttl"),
+    AT("--at"),
+    BATCH("--batch"),
+    IDEMPOTENCY_KEY("--idempotency-key"),
+    IDEMPOTENCY_WINDOW("-window"),
+    SCHEDULE_FILE("-f"),
+    TRACE("--trace"),
+    TRACE_SLOW("-slow"),
     INIT_ACTION("--init"),
     HELP_ACTION("-h"),
     SEND_ACTION("--send"),
-    STATUS_ACTION("--status");
+    STATUS_ACTION("--status"),
+    SCHEDULE_ACTION("--schedule"),
+    SETTLE_ACTION("--settle");
     
     private final String name;
     
@@ -0,0 +1,493 @@
+/*
+ * Copyright 2015 Dirk Franssen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package messenger;
+
+import com.ditavision.messengerengine.MessengerEngineException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk hash table mapping idempotency keys to the id of the message sent with them.
+ * Keys are stored as a digest in fixed size slots with linear probing, so a lookup only reads
+ * a few slots whatever the number of keys. The table is rebuilt when it is half full, leaving out released keys
+ * and sent keys of which the window has passed, and doubles when what is left still fills a quarter of it.
+ * Every operation runs under a lock on the file, so concurrent CLI processes cannot both reserve a key.
+ */
+public class IdempotencyIndex {
+
+    public static final Path DEFAULT_FILE = Paths.get(System.getProperty("user.home"), ".messenger-cli", "idempotency");
+    public static final String REJECTED_CODES_ENV_KEY = "DTV_MESSENGER_REJECTED_CODES";
+
+    static final int MAGIC = 0x4d43495a;
+    static final int RETIRED = 0x4d434952;
+    static final int SLOT_SIZE = 128;
+    // a whole slot, so slots stay aligned with the pages of the file and a page never holds part of one
+    static final int HEADER_SIZE = SLOT_SIZE;
+    static final int DIGEST_SIZE = 16;
+    static final int MAX_MESSAGE_ID_BYTES = SLOT_SIZE - 1 - DIGEST_SIZE - 8 - 8 - 1 - 4;
+    static final int INITIAL_CAPACITY = 1 << 12;
+    static final int COPY_SLOTS = 512;
+
+    static final byte EMPTY = 0;
+    static final byte PENDING = 1;
+    static final byte SENT = 2;
+    static final byte RELEASED = 3;
+
+    private final Path file;
+
+    public IdempotencyIndex(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * An earlier send with the same key.
+     */
+    public static class Entry {
+        private final byte state;
+        private final long millis;
+        private final long windowMillis;
+        private final String messageId;
+
+        Entry(byte state, long millis, long windowMillis, String messageId) {
+            this.state = state;
+            this.millis = millis;
+            this.windowMillis = windowMillis;
+            this.messageId = messageId;
+        }
+
+        public boolean isSent() {
+            return state == SENT;
+        }
+
+        public boolean isPending() {
+            return state == PENDING;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        public String getMessageId() {
+            return messageId;
+        }
+    }
+
+    /**
+     * Error codes which mean the engine did not accept the message, as configured via the environment variable.
+     */
+    public static Set<String> rejectedCodes() {
+        String configured = System.getenv(REJECTED_CODES_ENV_KEY);
+        Set<String> result = new HashSet<>();
+        if (configured != null) {
+            for (String code : configured.split(",")) {
+                if (!code.trim().isEmpty()) {
+                    result.add(code.trim());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Whether a failed send was certainly not accepted, so its key can be released for a retry:
+     * the server could not be reached or the error code is one of the rejected codes.
+     * For any other failure, e.g. a timeout after the request was sent, the message may have been accepted.
+     */
+    public static boolean notAccepted(MessengerEngineException ex, Set<String> rejectedCodes) {
+        if (ex.getCode() != null && rejectedCodes.contains(ex.getCode())) {
+            return true;
+        }
+        for (Throwable cause = ex.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException || cause instanceof UnknownHostException || cause instanceof NoRouteToHostException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reserves the key for a new send.
+     *
+     * @return null when the key has been reserved, otherwise the earlier send which is either sent or still pending
+     */
+    public Entry reserve(String key, long now) throws IOException {
+        return reserve(key, now, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reserves the key for a new send, an earlier send with the same key is ignored once the window has passed.
+     * A pending send never expires, as it is unknown whether it was accepted until it is recorded or released.
+     *
+     * @return null when the key has been reserved, otherwise the pending send or the earlier send within the window
+     */
+    public Entry reserve(String key, long now, long windowMillis) throws IOException {
+        byte[] digest = digest(key);
+        return update(table -> {
+            long slot = table.find(digest);
+            if (slot >= 0) {
+                Entry existing = table.read(slot);
+                if (existing.state == PENDING || existing.state == SENT && now - existing.millis < windowMillis) {
+                    return existing;
+                }
+                table.write(slot, PENDING, digest, now, windowMillis, "");
+                return null;
+            }
+            table.insert(digest, PENDING, now, windowMillis, "");
+            return null;
+        });
+    }
+
+    /**
+     * Records the message id returned for a reserved key, the key keeps the window it was reserved with.
+     */
+    public void record(String key, String messageId, long now) throws IOException {
+        String id = messageId == null ? "" : messageId;
+        if (id.getBytes(StandardCharsets.UTF_8).length > MAX_MESSAGE_ID_BYTES) {
+            throw new IOException("Message id too long for the idempotency index: " + messageId);
+        }
+        byte[] digest = digest(key);
+        update(table -> {
+            long slot = table.find(digest);
+            if (slot >= 0) {
+                table.write(slot, SENT, digest, now, table.read(slot).windowMillis, id);
+            } else {
+                table.insert(digest, SENT, now, Long.MAX_VALUE, id);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Returns the earlier send with the key, or null when there is none.
+     */
+    public Entry lookup(String key) throws IOException {
+        byte[] digest = digest(key);
+        return update(table -> {
+            long slot = table.find(digest);
+            if (slot < 0) {
+                return null;
+            }
+            Entry existing = table.read(slot);
+            return existing.state == SENT || existing.state == PENDING ? existing : null;
+        });
+    }
+
+    /**
+     * Frees a reserved key after a send which was not accepted, so it can be retried.
+     */
+    public void release(String key) throws IOException {
+        byte[] digest = digest(key);
+        update(table -> {
+            long slot = table.find(digest);
+            if (slot >= 0 && table.read(slot).state == PENDING) {
+                table.write(slot, RELEASED, digest, 0, 0, "");
+            }
+            return null;
+        });
+    }
+
+    private interface Operation<T> {
+        T apply(Table table) throws IOException;
+    }
+
+    private <T> T update(Operation<T> operation) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        while (true) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    FileLock lock = channel.lock()) {
+                Table table = Table.open(channel);
+                if (table == null) {
+                    // the table was rebuilt by another process after we opened it
+                    continue;
+                }
+                if (table.used + 1 > table.capacity / 2) {
+                    rebuild(table, System.currentTimeMillis());
+                    continue;
+                }
+                T result = operation.apply(table);
+                if (table.dirty) {
+                    channel.force(false);
+                }
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Copies the keys which are still needed to a new table in a temporary file, reading the old table
+     * in large chunks, and moves it in place of the old one.
+     */
+    private void rebuild(Table table, long now) throws IOException {
+        long live = 0;
+        for (long first = 0; first < table.capacity; first += COPY_SLOTS) {
+            for (byte[] raw : table.chunk(first)) {
+                if (keep(raw, now)) {
+                    live++;
+                }
+            }
+        }
+        long capacity = INITIAL_CAPACITY;
+        while (live > capacity / 4) {
+            capacity *= 2;
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel target = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Table rebuilt = Table.create(target, capacity);
+            BitSet occupied = new BitSet((int) capacity);
+            for (long first = 0; first < table.capacity; first += COPY_SLOTS) {
+                for (byte[] raw : table.chunk(first)) {
+                    if (keep(raw, now)) {
+                        rebuilt.put(Table.intact(raw) ? raw : Table.pending(raw), occupied);
+                    }
+                }
+            }
+            rebuilt.used = live;
+            rebuilt.writeHeader(MAGIC);
+            target.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        table.retire();
+    }
+
+    private static boolean keep(byte[] raw, long now) {
+        Entry entry = Table.entry(raw);
+        return entry.state == PENDING || entry.state == SENT && now - entry.millis < entry.windowMillis;
+    }
+
+    static byte[] digest(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return Arrays.copyOf(hash, DIGEST_SIZE);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Slot layout: state, key digest, time, window, message id length, message id, CRC32 of the preceding bytes.
+     * A slot of which the CRC does not match was torn by a crash while it was written. It is never reused
+     * and reads as pending: the write may have recorded a send, so its outcome is unknown until it is settled.
+     */
+    private static class Table {
+        final FileChannel channel;
+        final long capacity;
+        long used;
+        boolean dirty;
+
+        private Table(FileChannel channel, long capacity, long used) {
+            this.channel = channel;
+            this.capacity = capacity;
+            this.used = used;
+        }
+
+        static Table open(FileChannel channel) throws IOException {
+            if (channel.size() == 0) {
+                return create(channel, INITIAL_CAPACITY);
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            int magic = header.getInt();
+            if (magic == RETIRED) {
+                return null;
+            }
+            if (magic != MAGIC) {
+                throw new IOException("Not an idempotency index");
+            }
+            return new Table(channel, header.getInt(), header.getLong());
+        }
+
+        static Table create(FileChannel channel, long capacity) throws IOException {
+            Table table = new Table(channel, capacity, 0);
+            channel.write(ByteBuffer.allocate(1), HEADER_SIZE + capacity * SLOT_SIZE - 1);
+            table.writeHeader(MAGIC);
+            return table;
+        }
+
+        void retire() throws IOException {
+            writeHeader(RETIRED);
+        }
+
+        private void writeHeader(int magic) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(magic).putInt((int) capacity).putLong(used).flip();
+            channel.write(header, 0);
+            dirty = true;
+        }
+
+        /**
+         * @return the slot holding the digest, or -1
+         */
+        long find(byte[] digest) throws IOException {
+            long slot = home(digest);
+            for (long probes = 0; probes < capacity; probes++) {
+                byte[] raw = raw(slot);
+                if (raw == null) {
+                    return -1;
+                }
+                if (Arrays.equals(Arrays.copyOfRange(raw, 1, 1 + DIGEST_SIZE), digest)) {
+                    return slot;
+                }
+                slot = (slot + 1) & (capacity - 1);
+            }
+            return -1;
+        }
+
+        void insert(byte[] digest, byte state, long millis, long windowMillis, String messageId) throws IOException {
+            long slot = home(digest);
+            while (raw(slot) != null) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            write(slot, state, digest, millis, windowMillis, messageId);
+            used++;
+            writeHeader(MAGIC);
+        }
+
+        Entry read(long slot) throws IOException {
+            return entry(raw(slot));
+        }
+
+        static Entry entry(byte[] raw) {
+            ByteBuffer buffer = ByteBuffer.wrap(raw);
+            byte state = buffer.get();
+            buffer.position(1 + DIGEST_SIZE);
+            long millis = buffer.getLong();
+            if (!intact(raw)) {
+                return new Entry(PENDING, millis, Long.MAX_VALUE, "");
+            }
+            long windowMillis = buffer.getLong();
+            int length = buffer.get() & 0xff;
+            String messageId = new String(raw, buffer.position(), length, StandardCharsets.UTF_8);
+            return new Entry(state, millis, windowMillis, messageId);
+        }
+
+        static byte[] slot(byte state, byte[] digest, long millis, long windowMillis, String messageId) {
+            byte[] id = messageId.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer buffer = ByteBuffer.allocate(SLOT_SIZE);
+            buffer.put(state).put(digest).putLong(millis).putLong(windowMillis).put((byte) id.length).put(id);
+            CRC32 crc = new CRC32();
+            crc.update(buffer.array(), 0, SLOT_SIZE - 4);
+            buffer.putInt(SLOT_SIZE - 4, (int) crc.getValue());
+            return buffer.array();
+        }
+
+        /**
+         * @return an intact pending slot for the key of a torn slot
+         */
+        static byte[] pending(byte[] raw) {
+            Entry entry = entry(raw);
+            return slot(PENDING, Arrays.copyOfRange(raw, 1, 1 + DIGEST_SIZE), entry.millis, entry.windowMillis, entry.messageId);
+        }
+
+        void write(long slot, byte state, byte[] digest, long millis, long windowMillis, String messageId) throws IOException {
+            channel.write(ByteBuffer.wrap(slot(state, digest, millis, windowMillis, messageId)), offset(slot));
+            dirty = true;
+        }
+
+        /**
+         * Writes a slot to a new table, of which the occupied slots are tracked in memory instead of read back.
+         */
+        void put(byte[] raw, BitSet occupied) throws IOException {
+            int slot = (int) home(Arrays.copyOfRange(raw, 1, 1 + DIGEST_SIZE));
+            while (occupied.get(slot)) {
+                slot = (int) ((slot + 1) & (capacity - 1));
+            }
+            occupied.set(slot);
+            channel.write(ByteBuffer.wrap(raw), offset(slot));
+            dirty = true;
+        }
+
+        /**
+         * @return the slot contents, or null when the slot was never written
+         */
+        byte[] raw(long slot) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(SLOT_SIZE);
+            channel.read(buffer, offset(slot));
+            byte[] raw = buffer.array();
+            return written(raw) ? raw : null;
+        }
+
+        private static boolean written(byte[] raw) {
+            for (byte b : raw) {
+                if (b != EMPTY) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Reads up to COPY_SLOTS slots from the first one on in a single read.
+         *
+         * @return the slots which were written
+         */
+        List<byte[]> chunk(long first) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(COPY_SLOTS, capacity - first) * SLOT_SIZE);
+            long position = offset(first);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Idempotency index is truncated");
+                }
+            }
+            List<byte[]> result = new ArrayList<>();
+            for (int start = 0; start < buffer.capacity(); start += SLOT_SIZE) {
+                byte[] raw = Arrays.copyOfRange(buffer.array(), start, start + SLOT_SIZE);
+                if (written(raw)) {
+                    result.add(raw);
+                }
+            }
+            return result;
+        }
+
+        static boolean intact(byte[] raw) {
+            CRC32 crc = new CRC32();
+            crc.update(raw, 0, SLOT_SIZE - 4);
+            return (int) crc.getValue() == ByteBuffer.wrap(raw).getInt(SLOT_SIZE - 4);
+        }
+
+        private long home(byte[] digest) {
+            return ByteBuffer.wrap(digest).getLong() & (capacity - 1);
+        }
+
+        private long offset(long slot) {
+            return HEADER_SIZE + slot * SLOT_SIZE;
+        }
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2015 Dirk Franssen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package messenger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of scheduled messages.
+ * Every scheduled message is written as an add record and every sent or failed message as a record
+ * removing it, so the pending messages can be rebuilt after a restart without losing or repeating any of them.
+ * A message of which the send did not complete is set aside as unknown until it is settled,
+ * either as sent or by adding it again.
+ * Each record ends with a CRC32 of its fields, a record cut off by a crash is ignored.
+ * Appends from several processes are serialized through a lock file next to the journal.
+ */
+public class Schedule {
+
+    public static final Path DEFAULT_FILE = Paths.get(System.getProperty("user.home"), ".messenger-cli", "schedule");
+
+    static final String ADD_RECORD = "A";
+    static final String SENT_RECORD = "S";
+    static final String FAILED_RECORD = "F";
+    static final String UNKNOWN_RECORD = "U";
+    static final String SEPARATOR = "\t";
+
+    private final Path file;
+    private final Path lockFile;
+    private final Path runLockFile;
+    private long readPosition;
+
+    public Schedule(Path file) {
+        this.file = file;
+        this.lockFile = file.resolveSibling(file.getFileName() + ".lock");
+        this.runLockFile = file.resolveSibling(file.getFileName() + ".run");
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Adds a message to the schedule and returns it with its generated id.
+     */
+    public ScheduledMessage add(long dueMillis, String message, List<String> recipients) throws IOException {
+        ScheduledMessage scheduled = new ScheduledMessage(UUID.randomUUID().toString(), dueMillis, message, recipients);
+        append(toRecord(scheduled));
+        return scheduled;
+    }
+
+    /**
+     * Adds messages to the schedule with a single write to the journal.
+     */
+    public void addAll(List<ScheduledMessage> messages) throws IOException {
+        List<String> records = new ArrayList<>(messages.size());
+        messages.forEach(m -> records.add(toRecord(m)));
+        append(records);
+    }
+
+    /**
+     * Records that a scheduled message has been sent, it will not be loaded again.
+     */
+    public void markSent(String id, String messageId) throws IOException {
+        append(SENT_RECORD + SEPARATOR + id + SEPARATOR + messageId);
+    }
+
+    /**
+     * Records that a scheduled message has been given up on, it will not be loaded again.
+     */
+    public void markFailed(String id, String code) throws IOException {
+        append(FAILED_RECORD + SEPARATOR + id + SEPARATOR + code);
+    }
+
+    /**
+     * Records that it is unknown whether a scheduled message has been sent, it will not be loaded again until it is added again.
+     */
+    public void markUnknown(String id) throws IOException {
+        append(UNKNOWN_RECORD + SEPARATOR + id);
+    }
+
+    /**
+     * Adds a message which was set aside as unknown back to the schedule, with its original id.
+     */
+    public void addAgain(ScheduledMessage message) throws IOException {
+        append(toRecord(message));
+    }
+
+    /**
+     * Returns all messages which have not been sent yet and compacts the journal to only contain those
+     * and the unknown ones.
+     */
+    public Collection<ScheduledMessage> load() throws IOException {
+        createParent();
+        try (FileChannel lock = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                FileLock l = lock.lock()) {
+            Map<String, ScheduledMessage> pending = new LinkedHashMap<>();
+            Map<String, ScheduledMessage> unknown = new LinkedHashMap<>();
+            replayAll(pending, unknown);
+            List<String> records = new ArrayList<>(pending.size() + 2 * unknown.size());
+            pending.values().forEach(m -> records.add(seal(toRecord(m))));
+            unknown.values().forEach(m -> {
+                records.add(seal(toRecord(m)));
+                records.add(seal(UNKNOWN_RECORD + SEPARATOR + m.getId()));
+            });
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(tmp, records, StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            readPosition = Files.size(file);
+            return pending.values();
+        }
+    }
+
+    /**
+     * Returns the messages of which it is unknown whether they have been sent.
+     */
+    public Collection<ScheduledMessage> unknown() throws IOException {
+        createParent();
+        try (FileChannel lock = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                FileLock l = lock.lock()) {
+            Map<String, ScheduledMessage> unknown = new LinkedHashMap<>();
+            replayAll(new LinkedHashMap<>(), unknown);
+            return unknown.values();
+        }
+    }
+
+    private void replayAll(Map<String, ScheduledMessage> pending, Map<String, ScheduledMessage> unknown) throws IOException {
+        if (Files.exists(file)) {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                replay(line, pending, unknown);
+            }
+        }
+    }
+
+    /**
+     * Returns the messages which have been added by other processes since the previous load or poll.
+     */
+    public List<ScheduledMessage> poll() throws IOException {
+        List<ScheduledMessage> added = new ArrayList<>();
+        if (!Files.exists(file)) {
+            return added;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long available = channel.size() - readPosition;
+            if (available <= 0) {
+                return added;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(available, Integer.MAX_VALUE));
+            channel.read(buffer, readPosition);
+            byte[] bytes = buffer.array();
+            int start = 0;
+            for (int i = 0; i < buffer.position(); i++) {
+                if (bytes[i] == '\n') {
+                    ScheduledMessage message = parseAdd(new String(bytes, start, i - start, StandardCharsets.UTF_8));
+                    if (message != null) {
+                        added.add(message);
+                    }
+                    start = i + 1;
+                }
+            }
+            // an incomplete last line is still being written, it will be read during the next poll
+            readPosition += start;
+        }
+        return added;
+    }
+
+    /**
+     * Makes sure only one scheduler is sending the messages of this schedule.
+     *
+     * @return the lock to be released when the scheduler stops, or null when another scheduler holds it
+     */
+    public FileLock tryLockForRun() throws IOException {
+        createParent();
+        FileChannel channel = FileChannel.open(runLockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock = channel.tryLock();
+        if (lock == null) {
+            channel.close();
+        }
+        return lock;
+    }
+
+    private void append(String record) throws IOException {
+        append(Collections.singletonList(record));
+    }
+
+    private void append(List<String> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        createParent();
+        try (FileChannel lock = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                FileLock l = lock.lock();
+                FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            StringBuilder lines = new StringBuilder();
+            if (size > 0) {
+                ByteBuffer last = ByteBuffer.allocate(1);
+                channel.read(last, size - 1);
+                if (last.get(0) != '\n') {
+                    // terminate a record cut off by a crash, so it is skipped instead of merged with the next one
+                    lines.append('\n');
+                }
+            }
+            records.forEach(r -> lines.append(seal(r)).append('\n'));
+            ByteBuffer bytes = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                size += channel.write(bytes, size);
+            }
+            channel.force(false);
+        }
+    }
+
+    private void createParent() throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+    }
+
+    static void replay(String line, Map<String, ScheduledMessage> pending, Map<String, ScheduledMessage> unknown) {
+        String[] fields = unseal(line);
+        if (fields == null) {
+            return;
+        }
+        if (fields.length == 3 && (SENT_RECORD.equals(fields[0]) || FAILED_RECORD.equals(fields[0]))) {
+            pending.remove(fields[1]);
+            unknown.remove(fields[1]);
+            return;
+        }
+        if (fields.length == 2 && UNKNOWN_RECORD.equals(fields[0])) {
+            ScheduledMessage message = pending.remove(fields[1]);
+            if (message != null) {
+                unknown.put(message.getId(), message);
+            }
+            return;
+        }
+        ScheduledMessage message = parseAdd(line);
+        if (message != null) {
+            unknown.remove(message.getId());
+            pending.put(message.getId(), message);
+        }
+    }
+
+    /**
+     * Parses an ISO time with an offset, or without one in the local time zone.
+     *
+     * @throws DateTimeParseException when the time cannot be parsed
+     * @throws ArithmeticException when the time is out of range
+     */
+    static long parseTime(String time) {
+        try {
+            return OffsetDateTime.parse(time).toInstant().toEpochMilli();
+        } catch (DateTimeParseException ex) {
+            return LocalDateTime.parse(time).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+    }
+
+    /**
+     * Parses the time to send at and checks it is within the horizon of the scheduler.
+     *
+     * @throws IllegalArgumentException when the time cannot be parsed or is too far in the future
+     */
+    static long dueMillis(String time, long now) {
+        long due;
+        try {
+            due = parseTime(time);
+        } catch (DateTimeParseException | ArithmeticException ex) {
+            throw new IllegalArgumentException("cannot parse the time to send at: " + ex.getMessage(), ex);
+        }
+        if (due - now > Scheduler.MAX_AHEAD_MILLIS) {
+            throw new IllegalArgumentException("'" + time + "' is too far in the future, the maximum is "
+                    + Instant.ofEpochMilli(now + Scheduler.MAX_AHEAD_MILLIS));
+        }
+        return due;
+    }
+
+    /**
+     * Parses a line of a batch file: the time to send at, the comma-separated recipients and the message, separated by tabs.
+     *
+     * @throws IllegalArgumentException when the line is not a valid entry
+     */
+    static ScheduledMessage parseEntry(String line, long now) {
+        String[] fields = line.split(SEPARATOR, 3);
+        if (fields.length != 3 || fields[1].trim().isEmpty() || fields[2].isEmpty()) {
+            throw new IllegalArgumentException("expected the time, recipients and message separated by tabs");
+        }
+        return new ScheduledMessage(UUID.randomUUID().toString(), dueMillis(fields[0].trim(), now), fields[2], App.split(fields[1].trim()));
+    }
+
+    static String seal(String record) {
+        return record + SEPARATOR + crc(record);
+    }
+
+    /**
+     * @return the fields of the record, or null when its checksum does not match
+     */
+    static String[] unseal(String line) {
+        int end = line.lastIndexOf(SEPARATOR);
+        if (end < 0) {
+            return null;
+        }
+        String record = line.substring(0, end);
+        return crc(record).equals(line.substring(end + 1)) ? record.split(SEPARATOR, -1) : null;
+    }
+
+    private static String crc(String record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.getBytes(StandardCharsets.UTF_8));
+        return Long.toHexString(crc.getValue());
+    }
+
+    static String toRecord(ScheduledMessage message) {
+        return ADD_RECORD + SEPARATOR + message.getId()
+                + SEPARATOR + message.getDueMillis()
+                + SEPARATOR + String.join(",", message.getRecipients())
+                + SEPARATOR + Base64.getEncoder().encodeToString(message.getMessage().getBytes(StandardCharsets.UTF_8));
+    }
+
+    static ScheduledMessage parseAdd(String line) {
+        String[] fields = unseal(line);
+        if (fields == null || fields.length != 5 || !ADD_RECORD.equals(fields[0])) {
+            return null;
+        }
+        try {
+            String message = new String(Base64.getDecoder().decode(fields[4]), StandardCharsets.UTF_8);
+            return new ScheduledMessage(fields[1], Long.parseLong(fields[2]), message, App.split(fields[3]));
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+}
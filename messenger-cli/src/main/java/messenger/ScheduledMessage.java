@@ -0,0 +1,52 @@
+/*
+ * Copyright 2015 Dirk Franssen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package messenger;
+
+import java.util.List;
+
+/**
+ * A message waiting in the schedule to be sent at a given time.
+ */
+public class ScheduledMessage {
+
+    private final String id;
+    private final long dueMillis;
+    private final String message;
+    private final List<String> recipients;
+
+    public ScheduledMessage(String id, long dueMillis, String message, List<String> recipients) {
+        this.id = id;
+        this.dueMillis = dueMillis;
+        this.message = message;
+        this.recipients = recipients;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public long getDueMillis() {
+        return dueMillis;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public List<String> getRecipients() {
+        return recipients;
+    }
+}
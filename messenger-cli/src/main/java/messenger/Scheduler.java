@@ -0,0 +1,236 @@
+/*
+ * Copyright 2015 Dirk Franssen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package messenger;
+
+import com.ditavision.messengerengine.MessengerEngine;
+import com.ditavision.messengerengine.MessengerEngineException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Long running process sending the messages of a {@link Schedule} when they are due.
+ * Due messages with the same text are combined into a single engine call. When such a call was not accepted,
+ * the messages are retried one by one with an exponential backoff until they are given up on.
+ * Each scheduled message is sent with its id as idempotency key, so a crash between the send
+ * and recording it in the schedule does not send it again after a restart. A message of which
+ * the send may have been accepted is set aside as unknown until it is settled with {@code --settle}.
+ */
+public class Scheduler {
+
+    static final long TICK_MILLIS = 1000;
+    static final long RETRY_DELAY_MILLIS = 60_000;
+    static final int MAX_ATTEMPTS = 5;
+    static final long MAX_AHEAD_MILLIS = TICK_MILLIS * ((1L << 32) - 1);
+    static final int MAX_RECIPIENTS_PER_SEND = 50;
+    static final String IDEMPOTENCY_KEY_PREFIX = "schedule:";
+
+    private final Schedule schedule;
+    private final IdempotencyIndex index;
+    private final MessengerEngine engine;
+    private final String server;
+    private final String user;
+    private final String password;
+    private final TimerWheel<ScheduledMessage> wheel;
+    private final Map<String, Integer> failedAttempts = new HashMap<>();
+    private final Set<String> rejectedCodes = IdempotencyIndex.rejectedCodes();
+
+    public Scheduler(Schedule schedule, IdempotencyIndex index, MessengerEngine engine, String server, String user, String password) {
+        this.schedule = schedule;
+        this.index = index;
+        this.engine = engine;
+        this.server = server;
+        this.user = user;
+        this.password = password;
+        this.wheel = new TimerWheel<>(TICK_MILLIS, System.currentTimeMillis());
+    }
+
+    /**
+     * Sends the scheduled messages until the thread is interrupted.
+     */
+    public void run() throws IOException, InterruptedException {
+        FileLock lock = schedule.tryLockForRun();
+        if (lock == null) {
+            throw new IOException("Another scheduler is already running for '" + schedule.getFile() + "'");
+        }
+        try (FileChannel channel = lock.channel()) {
+            schedule.load().forEach(this::add);
+            System.out.printf("Loaded %d pending message(s) from '%s'\n", wheel.size(), schedule.getFile());
+            while (!Thread.currentThread().isInterrupted()) {
+                long now = System.currentTimeMillis();
+                tick(now);
+                Thread.sleep(TICK_MILLIS - now % TICK_MILLIS);
+            }
+        }
+    }
+
+    void tick(long now) throws IOException {
+        schedule.poll().forEach(this::add);
+        List<ScheduledMessage> due = new ArrayList<>();
+        for (ScheduledMessage message : wheel.advance(now)) {
+            if (message.getDueMillis() > now) {
+                // parked at the horizon of the wheel
+                add(message);
+            } else {
+                due.add(message);
+            }
+        }
+        if (!due.isEmpty()) {
+            send(due, now);
+        }
+    }
+
+    /**
+     * Adds a message to the wheel, a message beyond the horizon of the wheel is parked at the horizon.
+     */
+    void add(ScheduledMessage message) {
+        wheel.add(Math.min(message.getDueMillis(), wheel.maxDeadlineMillis()), message);
+    }
+
+    int pending() {
+        return wheel.size();
+    }
+
+    void send(List<ScheduledMessage> due, long now) throws IOException {
+        for (List<ScheduledMessage> scheduledBatch : batches(due, failedAttempts.keySet())) {
+            List<ScheduledMessage> batch = reserve(scheduledBatch, now);
+            if (batch.isEmpty()) {
+                continue;
+            }
+            String message = batch.get(0).getMessage();
+            List<String> recipients = new ArrayList<>();
+            batch.forEach(m -> recipients.addAll(m.getRecipients()));
+            try {
+                String msgId = Trace.call("scheduledSendMessage", () -> engine.sendMessage(server, user, password, message, recipients));
+                for (ScheduledMessage scheduled : batch) {
+                    index.record(idempotencyKey(scheduled), msgId, now);
+                    schedule.markSent(scheduled.getId(), msgId);
+                    failedAttempts.remove(scheduled.getId());
+                }
+                System.out.printf("Sent %d scheduled message(s) to recipients '%s'. Message id: %s\n",
+                        batch.size(), String.join(",", recipients), msgId);
+            } catch (MessengerEngineException ex) {
+                System.out.println("Error during sending scheduled message: " + ex.getCode() + " - " + ex.getMessage());
+                boolean notAccepted = IdempotencyIndex.notAccepted(ex, rejectedCodes);
+                for (ScheduledMessage scheduled : batch) {
+                    if (notAccepted) {
+                        index.release(idempotencyKey(scheduled));
+                        retry(scheduled, ex.getCode(), now);
+                    } else {
+                        failedAttempts.remove(scheduled.getId());
+                        setAside(scheduled);
+                    }
+                }
+            }
+        }
+    }
+
+    private void retry(ScheduledMessage scheduled, String code, long now) throws IOException {
+        int attempts = failedAttempts.merge(scheduled.getId(), 1, Integer::sum);
+        if (attempts >= MAX_ATTEMPTS) {
+            failedAttempts.remove(scheduled.getId());
+            schedule.markFailed(scheduled.getId(), code);
+            System.out.printf("Giving up on scheduled message %s after %d attempts\n", scheduled.getId(), attempts);
+            return;
+        }
+        long retryAt = now + (RETRY_DELAY_MILLIS << (attempts - 1));
+        System.out.printf("Retrying scheduled message %s at %s\n", scheduled.getId(), Instant.ofEpochMilli(retryAt));
+        wheel.add(retryAt, scheduled);
+    }
+
+    private void setAside(ScheduledMessage scheduled) throws IOException {
+        schedule.markUnknown(scheduled.getId());
+        System.out.printf("It is unknown whether scheduled message %s was sent, it will not be sent again until it is settled with:\n"
+                + "java -jar messenger-cli.jar --settle -id MESSAGE_ID|none --idempotency-key %s\n", scheduled.getId(), idempotencyKey(scheduled));
+    }
+
+    /**
+     * Reserves the idempotency keys of the batch and returns the messages which still have to be sent.
+     * Messages sent before a crash are only marked as sent, the ones of which the outcome is unknown are set aside.
+     */
+    List<ScheduledMessage> reserve(List<ScheduledMessage> batch, long now) throws IOException {
+        List<ScheduledMessage> toSend = new ArrayList<>();
+        for (ScheduledMessage scheduled : batch) {
+            IdempotencyIndex.Entry earlier = index.reserve(idempotencyKey(scheduled), now);
+            if (earlier == null) {
+                toSend.add(scheduled);
+            } else if (earlier.isSent()) {
+                schedule.markSent(scheduled.getId(), earlier.getMessageId());
+                System.out.printf("Scheduled message %s was already sent. Message id: %s\n", scheduled.getId(), earlier.getMessageId());
+            } else {
+                System.out.printf("The send of scheduled message %s started at '%s' did not complete\n",
+                        scheduled.getId(), Instant.ofEpochMilli(earlier.getMillis()));
+                setAside(scheduled);
+            }
+        }
+        return toSend;
+    }
+
+    static String idempotencyKey(ScheduledMessage scheduled) {
+        return IDEMPOTENCY_KEY_PREFIX + scheduled.getId();
+    }
+
+    /**
+     * The id of the scheduled message sent with the idempotency key, or null when it is not the key of a scheduled message.
+     */
+    static String scheduledId(String idempotencyKey) {
+        return idempotencyKey.startsWith(IDEMPOTENCY_KEY_PREFIX) ? idempotencyKey.substring(IDEMPOTENCY_KEY_PREFIX.length()) : null;
+    }
+
+    /**
+     * Groups the due messages by text, without repeating a recipient within one group
+     * and without exceeding the maximum number of recipients per engine call.
+     * Messages which failed before are sent on their own, so they cannot make other messages fail.
+     */
+    static List<List<ScheduledMessage>> batches(List<ScheduledMessage> due, Set<String> failed) {
+        Map<String, List<ScheduledMessage>> byMessage = new LinkedHashMap<>();
+        List<List<ScheduledMessage>> batches = new ArrayList<>();
+        for (ScheduledMessage message : due) {
+            if (failed.contains(message.getId())) {
+                List<ScheduledMessage> alone = new ArrayList<>();
+                alone.add(message);
+                batches.add(alone);
+            } else {
+                byMessage.computeIfAbsent(message.getMessage(), k -> new ArrayList<>()).add(message);
+            }
+        }
+        for (List<ScheduledMessage> sameMessage : byMessage.values()) {
+            List<ScheduledMessage> batch = new ArrayList<>();
+            Set<String> recipients = new HashSet<>();
+            for (ScheduledMessage message : sameMessage) {
+                boolean full = recipients.size() + message.getRecipients().size() > MAX_RECIPIENTS_PER_SEND;
+                boolean overlaps = message.getRecipients().stream().anyMatch(recipients::contains);
+                if (!batch.isEmpty() && (full || overlaps)) {
+                    batches.add(batch);
+                    batch = new ArrayList<>();
+                    recipients = new HashSet<>();
+                }
+                batch.add(message);
+                recipients.addAll(message.getRecipients());
+            }
+            batches.add(batch);
+        }
+        return batches;
+    }
+}
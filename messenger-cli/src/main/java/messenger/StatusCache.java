@@ -0,0 +1,248 @@
+/*
+ * Copyright 2015 Dirk Franssen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package messenger;
+
+import com.ditavision.messengerengine.mmp.response.MMPRecipientStatus;
+import com.ditavision.messengerengine.mmp.response.MMPStatusReportDetail;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Local cache of status reports, kept in a separate file per server and user.
+ * Recipients which reached a final status are kept forever, the other ones expire after a TTL
+ * and only a limited number of messages still in flight is kept (least recently used are evicted).
+ */
+public class StatusCache {
+
+    public static final Path DEFAULT_DIR = Paths.get(System.getProperty("user.home"), ".messenger-cli", "status-cache");
+    public static final String FINAL_STATUSES_ENV_KEY = "DTV_MESSENGER_FINAL_STATUSES";
+    public static final List<String> DEFAULT_FINAL_STATUSES = Arrays.asList("delivered", "failed", "expired", "rejected", "undeliverable");
+    public static final long DEFAULT_TTL_SECONDS = 60;
+    static final int MAX_IN_FLIGHT = 10_000;
+    static final String SEPARATOR = "\t";
+
+    private final Path file;
+    private final long ttlMillis;
+    private final int maxInFlight;
+    private final Set<String> finalStatuses;
+    private final Map<String, CachedReport> done = new HashMap<>();
+    private final Map<String, CachedReport> inFlight;
+    private int hits;
+    private int misses;
+
+    public StatusCache(Path file, long ttlMillis, int maxInFlight, Set<String> finalStatuses) {
+        this.file = file;
+        this.ttlMillis = ttlMillis;
+        this.maxInFlight = maxInFlight;
+        this.finalStatuses = finalStatuses;
+        this.inFlight = new LinkedHashMap<String, CachedReport>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedReport> eldest) {
+                return size() > StatusCache.this.maxInFlight;
+            }
+        };
+    }
+
+    /**
+     * Final statuses as configured via the environment variable, or the default ones.
+     */
+    public static Set<String> finalStatuses() {
+        String configured = System.getenv(FINAL_STATUSES_ENV_KEY);
+        List<String> statuses = App.nullOrEmpty(configured) ? DEFAULT_FINAL_STATUSES : Arrays.asList(configured.split(","));
+        Set<String> result = new HashSet<>();
+        statuses.forEach(s -> result.add(s.trim().toLowerCase()));
+        return result;
+    }
+
+    /**
+     * The cache file for the given server and user within the cache directory.
+     * Message ids are only unique per server and user, so their reports cannot share a file.
+     */
+    public static Path file(Path dir, String server, String user) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : IdempotencyIndex.digest(server + "\n" + user)) {
+            name.append(String.format("%02x", b));
+        }
+        return dir.resolve(name.toString());
+    }
+
+    /**
+     * Returns the cached report of a message, or null when it has to be requested from the server.
+     */
+    public MMPStatusReportDetail get(String messageId, long now) {
+        CachedReport report = done.get(messageId);
+        if (report == null) {
+            report = inFlight.get(messageId);
+            if (report != null && now - report.fetchedMillis >= ttlMillis) {
+                report = null;
+            }
+        }
+        if (report == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return report.toDetail(messageId);
+    }
+
+    public void put(MMPStatusReportDetail detail, long now) {
+        String messageId = detail.getMessageId();
+        CachedReport report = done.remove(messageId);
+        if (report == null) {
+            report = inFlight.remove(messageId);
+        }
+        if (report == null) {
+            report = new CachedReport();
+        }
+        report.fetchedMillis = now;
+        for (MMPRecipientStatus recipient : detail.getRecipients()) {
+            MMPRecipientStatus cached = report.recipients.get(recipient.getMsisdn());
+            if (cached == null || !isFinal(cached)) {
+                report.recipients.put(recipient.getMsisdn(), recipient);
+            }
+        }
+        if (isFinal(report)) {
+            done.put(messageId, report);
+        } else {
+            inFlight.put(messageId, report);
+        }
+    }
+
+    public int getHits() {
+        return hits;
+    }
+
+    public int getMisses() {
+        return misses;
+    }
+
+    /**
+     * A report without recipients is not final, the server may not know all recipients yet.
+     */
+    private boolean isFinal(CachedReport report) {
+        return !report.recipients.isEmpty() && report.recipients.values().stream().allMatch(this::isFinal);
+    }
+
+    boolean isFinal(MMPRecipientStatus recipient) {
+        return isFinal(recipient.getStatusId()) || isFinal(recipient.getStatus());
+    }
+
+    private boolean isFinal(String status) {
+        return status != null && finalStatuses.contains(status.toLowerCase());
+    }
+
+    public void load() throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        Map<String, CachedReport> reports = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String[] fields = line.split(SEPARATOR, -1);
+            if (fields.length != 5) {
+                continue;
+            }
+            try {
+                MMPRecipientStatus recipient = new MMPRecipientStatus();
+                recipient.setMsisdn(fields[1]);
+                recipient.setStatusId(decode(fields[2]));
+                recipient.setStatus(decode(fields[3]));
+                CachedReport report = reports.computeIfAbsent(fields[0], k -> new CachedReport());
+                report.fetchedMillis = Long.parseLong(fields[4]);
+                report.recipients.put(recipient.getMsisdn(), recipient);
+            } catch (IllegalArgumentException ex) {
+                // a corrupt line only costs an extra request to the server
+            }
+        }
+        reports.forEach((id, report) -> {
+            if (isFinal(report)) {
+                done.put(id, report);
+            } else {
+                inFlight.put(id, report);
+            }
+        });
+    }
+
+    /**
+     * Writes all final reports and the in flight reports which are not expired yet.
+     * Concurrent saves are serialized through a lock file next to the cache and each writes its own temporary file,
+     * so the published file always comes from a single save.
+     */
+    public void save(long now) throws IOException {
+        List<String> lines = new ArrayList<>();
+        done.forEach((id, report) -> report.write(id, lines));
+        inFlight.forEach((id, report) -> {
+            if (now - report.fetchedMillis < ttlMillis) {
+                report.write(id, lines);
+            }
+        });
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path lockFile = file.resolveSibling(file.getFileName() + ".lock");
+        try (FileChannel lock = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                FileLock l = lock.lock()) {
+            Path tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+            try {
+                Files.write(tmp, lines, StandardCharsets.UTF_8);
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+
+    private static String encode(String value) {
+        return value == null ? "" : Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decode(String value) {
+        return value.isEmpty() ? null : new String(Base64.getDecoder().decode(value), StandardCharsets.UTF_8);
+    }
+
+    private static class CachedReport {
+        long fetchedMillis;
+        final Map<String, MMPRecipientStatus> recipients = new LinkedHashMap<>();
+
+        MMPStatusReportDetail toDetail(String messageId) {
+            MMPStatusReportDetail detail = new MMPStatusReportDetail();
+            detail.setMessageId(messageId);
+            detail.setRecipients(new ArrayList<>(recipients.values()));
+            return detail;
+        }
+
+        void write(String messageId, List<String> lines) {
+            recipients.values().forEach(r -> lines.add(messageId + SEPARATOR + r.getMsisdn()
+                    + SEPARATOR + encode(r.getStatusId())
+                    + SEPARATOR + encode(r.getStatus())
+                    + SEPARATOR + fetchedMillis));
+        }
+    }
+}
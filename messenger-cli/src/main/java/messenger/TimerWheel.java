@@ -0,0 +1,149 @@
+/*
+ * Copyright 2015 Dirk Franssen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package messenger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timer wheel with constant time insertion and expiry.
+ * Four levels of 256 slots each cover 2^32 ticks; entries on a higher level are
+ * cascaded into the lower levels when the lower level wraps around.
+ * Not thread safe.
+ *
+ * @param <T> the type of the values being scheduled
+ */
+public class TimerWheel<T> {
+
+    private static final int SLOT_BITS = 8;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    private final long tickMillis;
+    private final List<List<Entry<T>>> slots = new ArrayList<>(LEVELS * SLOTS);
+    private List<Entry<T>> overdue = new ArrayList<>();
+    private long currentTick;
+    private int size;
+
+    public TimerWheel(long tickMillis, long nowMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Tick duration must be positive: " + tickMillis);
+        }
+        this.tickMillis = tickMillis;
+        this.currentTick = nowMillis / tickMillis;
+        for (int i = 0; i < LEVELS * SLOTS; i++) {
+            slots.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * Schedules a value. A deadline in the past will be returned by the next call to {@link #advance(long)}.
+     */
+    public void add(long deadlineMillis, T value) {
+        long tick = deadlineMillis / tickMillis;
+        if (tick - currentTick >= 1L << (SLOT_BITS * LEVELS)) {
+            throw new IllegalArgumentException("Deadline too far in the future: " + deadlineMillis);
+        }
+        Entry<T> entry = new Entry<>(tick, value);
+        if (tick <= currentTick) {
+            overdue.add(entry);
+        } else {
+            place(entry);
+        }
+        size++;
+    }
+
+    /**
+     * Moves the wheel forward up to the given time and returns all values of which the deadline has passed.
+     */
+    public List<T> advance(long nowMillis) {
+        List<T> expired = new ArrayList<>();
+        for (Entry<T> entry : overdue) {
+            expired.add(entry.value);
+        }
+        overdue = new ArrayList<>();
+        long target = nowMillis / tickMillis;
+        while (currentTick < target) {
+            if (size == expired.size()) {
+                // nothing left in the wheel, no need to visit the empty slots
+                currentTick = target;
+                break;
+            }
+            currentTick++;
+            cascade();
+            List<Entry<T>> slot = slots.get((int) (currentTick & MASK));
+            for (Entry<T> entry : slot) {
+                expired.add(entry.value);
+            }
+            slot.clear();
+        }
+        size -= expired.size();
+        return expired;
+    }
+
+    /**
+     * The latest deadline which can be added right now.
+     */
+    public long maxDeadlineMillis() {
+        return (currentTick + (1L << (SLOT_BITS * LEVELS)) - 1) * tickMillis;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long tickMillis() {
+        return tickMillis;
+    }
+
+    private void cascade() {
+        for (int level = LEVELS - 1; level > 0; level--) {
+            if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                continue;
+            }
+            int index = (int) ((currentTick >>> (SLOT_BITS * level)) & MASK);
+            List<Entry<T>> slot = slots.get(level * SLOTS + index);
+            if (slot.isEmpty()) {
+                continue;
+            }
+            List<Entry<T>> entries = new ArrayList<>(slot);
+            slot.clear();
+            entries.forEach(this::place);
+        }
+    }
+
+    private void place(Entry<T> entry) {
+        long delta = entry.tick - currentTick;
+        for (int level = 0; level < LEVELS; level++) {
+            if (delta < 1L << (SLOT_BITS * (level + 1))) {
+                int index = (int) ((entry.tick >>> (SLOT_BITS * level)) & MASK);
+                slots.get(level * SLOTS + index).add(entry);
+                return;
+            }
+        }
+    }
+
+    private static class Entry<T> {
+        final long tick;
+        final T value;
+
+        Entry(long tick, T value) {
+            this.tick = tick;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2015 Dirk Franssen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package messenger;
+
+import com.ditavision.messengerengine.MessengerEngineException;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * Opt-in trace log with one structured event per engine call.
+ * The HTTP phases are measured by the {@link TraceFilter} on the engine's Jersey client, the events
+ * are written by a background thread so tracing does not slow down the calls being traced.
+ * Only calls taking at least the slow threshold are logged with the timings of every request.
+ */
+public class Trace {
+
+    public static final long DEFAULT_SLOW_MILLIS = 1000;
+
+    static final ThreadLocal<TraceEvent> CURRENT = new ThreadLocal<>();
+    private static final String END = "";
+    private static volatile BlockingQueue<String> queue;
+    private static Thread writer;
+    private static boolean shutdownHook;
+    private static long slowMillis;
+
+    /**
+     * Starts writing trace events to the given file until {@link #close()} or the JVM shuts down.
+     */
+    public static synchronized void enable(Path file, long slowThresholdMillis) throws IOException {
+        if (queue != null) {
+            return;
+        }
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        writer = new Thread(() -> write(lines, out), "messenger-trace");
+        writer.setDaemon(true);
+        writer.start();
+        if (!shutdownHook) {
+            Runtime.getRuntime().addShutdownHook(new Thread(Trace::close));
+            shutdownHook = true;
+        }
+        slowMillis = slowThresholdMillis;
+        queue = lines;
+    }
+
+    /**
+     * Stops tracing and waits until the pending events are written.
+     */
+    public static synchronized void close() {
+        BlockingQueue<String> lines = queue;
+        if (lines == null) {
+            return;
+        }
+        queue = null;
+        lines.offer(END);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        writer = null;
+    }
+
+    public static boolean isEnabled() {
+        return queue != null;
+    }
+
+    /**
+     * Runs an engine call and logs its trace event when tracing is enabled.
+     */
+    public static <T> T call(String operation, Supplier<T> engineCall) {
+        BlockingQueue<String> lines = queue;
+        if (lines == null) {
+            return engineCall.get();
+        }
+        TraceEvent event = new TraceEvent(UUID.randomUUID().toString(), operation);
+        CURRENT.set(event);
+        String outcome = "ERROR";
+        try {
+            T result = engineCall.get();
+            outcome = "OK";
+            return result;
+        } catch (MessengerEngineException ex) {
+            outcome = ex.getCode();
+            throw ex;
+        } finally {
+            CURRENT.remove();
+            event.finish(outcome);
+            lines.offer(event.toJson(event.totalMillis() >= slowMillis));
+        }
+    }
+
+    public static void run(String operation, Runnable engineCall) {
+        call(operation, () -> {
+            engineCall.run();
+            return null;
+        });
+    }
+
+    static TraceEvent current() {
+        return CURRENT.get();
+    }
+
+    private static void write(BlockingQueue<String> lines, BufferedWriter writer) {
+        try (BufferedWriter out = writer) {
+            while (true) {
+                String line = lines.take();
+                if (END.equals(line)) {
+                    return;
+                }
+                out.write(line);
+                out.newLine();
+                if (lines.isEmpty()) {
+                    out.flush();
+                }
+            }
+        } catch (IOException ex) {
+            System.out.println("Error writing the trace log: " + ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
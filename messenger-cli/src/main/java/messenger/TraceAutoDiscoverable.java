@@ -0,0 +1,35 @@
+/*
+ * Copyright 2015 Dirk Franssen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package messenger;
+
+import javax.ws.rs.RuntimeType;
+import javax.ws.rs.core.FeatureContext;
+import org.glassfish.jersey.internal.spi.AutoDiscoverable;
+
+/**
+ * Registers the {@link TraceFilter} on every Jersey client, including the one created by the messenger-engine.
+ * Picked up through META-INF/services, the filter does nothing unless a traced engine call is running.
+ */
+public class TraceAutoDiscoverable implements AutoDiscoverable {
+
+    @Override
+    public void configure(FeatureContext context) {
+        if (context.getConfiguration().getRuntimeType() == RuntimeType.CLIENT
+                && !context.getConfiguration().isRegistered(TraceFilter.class)) {
+            context.register(TraceFilter.class);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2015 Dirk Franssen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package messenger;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Timings of a single engine call and of the HTTP requests it made.
+ */
+public class TraceEvent {
+
+    private final String correlationId;
+    private final String operation;
+    private final long startMillis;
+    private final long startNanos;
+    private final List<RequestTrace> requests = new ArrayList<>();
+    private String outcome;
+    private long totalNanos;
+
+    TraceEvent(String correlationId, String operation) {
+        this.correlationId = correlationId;
+        this.operation = operation;
+        this.startMillis = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+    }
+
+    public String getCorrelationId() {
+        return correlationId;
+    }
+
+    RequestTrace startRequest(String method, String uri) {
+        RequestTrace request = new RequestTrace(method, uri);
+        requests.add(request);
+        return request;
+    }
+
+    void finish(String outcome) {
+        this.outcome = outcome;
+        this.totalNanos = System.nanoTime() - startNanos;
+    }
+
+    long totalMillis() {
+        return totalNanos / 1_000_000;
+    }
+
+    long payloadBytes() {
+        return requests.stream().mapToLong(r -> r.bytes).sum();
+    }
+
+    /**
+     * One JSON object per line, the timings per request are only added when asked for.
+     */
+    String toJson(boolean detailed) {
+        StringBuilder json = new StringBuilder("{");
+        field(json, "time", Instant.ofEpochMilli(startMillis).toString()).append(',');
+        field(json, "correlationId", correlationId).append(',');
+        field(json, "operation", operation).append(',');
+        field(json, "outcome", outcome).append(',');
+        json.append("\"totalMs\":").append(millis(totalNanos)).append(',');
+        json.append("\"payloadBytes\":").append(payloadBytes()).append(',');
+        json.append("\"requestCount\":").append(requests.size());
+        if (detailed) {
+            json.append(",\"slow\":true,\"requests\":[");
+            for (int i = 0; i < requests.size(); i++) {
+                if (i > 0) {
+                    json.append(',');
+                }
+                requests.get(i).toJson(json);
+            }
+            json.append(']');
+        }
+        return json.append('}').toString();
+    }
+
+    static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1_000_000.0);
+    }
+
+    static StringBuilder field(StringBuilder json, String name, String value) {
+        json.append('"').append(name).append("\":");
+        if (value == null) {
+            return json.append("null");
+        }
+        json.append('"');
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        return json.append('"');
+    }
+
+    /**
+     * Phase timings of one HTTP request, a phase which did not happen stays -1.
+     */
+    static class RequestTrace {
+        final String method;
+        final String uri;
+        int status = -1;
+        long bytes;
+        long serializeNanos = -1;
+        long connectNanos = -1;
+        long serverNanos = -1;
+        long sentNanos;
+
+        RequestTrace(String method, String uri) {
+            this.method = method;
+            this.uri = uri;
+        }
+
+        void toJson(StringBuilder json) {
+            json.append('{');
+            field(json, "method", method).append(',');
+            field(json, "uri", uri).append(',');
+            json.append("\"status\":").append(status).append(',');
+            json.append("\"bytes\":").append(bytes);
+            phase(json, "serializeMs", serializeNanos);
+            phase(json, "connectMs", connectNanos);
+            phase(json, "serverMs", serverNanos);
+            json.append('}');
+        }
+
+        private static void phase(StringBuilder json, String name, long nanos) {
+            if (nanos >= 0) {
+                json.append(",\"").append(name).append("\":").append(millis(nanos));
+            }
+        }
+    }
+}
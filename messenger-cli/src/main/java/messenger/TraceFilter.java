@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015 Dirk Franssen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package messenger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.client.ClientResponseContext;
+import javax.ws.rs.client.ClientResponseFilter;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+/**
+ * Measures the phases of the HTTP requests made during a traced engine call.
+ * The entity is serialized into a buffer to separate the serialization from the connect
+ * (including the DNS lookup and the TLS handshake) and upload.
+ * Requests without an entity connect while waiting for the server.
+ */
+public class TraceFilter implements ClientRequestFilter, ClientResponseFilter, WriterInterceptor {
+
+    public static final String CORRELATION_ID_HEADER = "X-Correlation-Id";
+    static final String REQUEST_PROPERTY = TraceFilter.class.getName();
+
+    @Override
+    public void filter(ClientRequestContext request) throws IOException {
+        TraceEvent event = Trace.current();
+        if (event == null) {
+            return;
+        }
+        TraceEvent.RequestTrace trace = event.startRequest(request.getMethod(), request.getUri().toString());
+        request.setProperty(REQUEST_PROPERTY, trace);
+        request.getHeaders().putSingle(CORRELATION_ID_HEADER, event.getCorrelationId());
+        trace.sentNanos = System.nanoTime();
+    }
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+        Object property = context.getProperty(REQUEST_PROPERTY);
+        if (!(property instanceof TraceEvent.RequestTrace)) {
+            context.proceed();
+            return;
+        }
+        TraceEvent.RequestTrace trace = (TraceEvent.RequestTrace) property;
+        OutputStream original = context.getOutputStream();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        context.setOutputStream(buffer);
+        long start = System.nanoTime();
+        context.proceed();
+        long serialized = System.nanoTime();
+        trace.serializeNanos = serialized - start;
+        trace.bytes = buffer.size();
+        buffer.writeTo(original);
+        original.flush();
+        context.setOutputStream(original);
+        trace.sentNanos = System.nanoTime();
+        trace.connectNanos = trace.sentNanos - serialized;
+    }
+
+    @Override
+    public void filter(ClientRequestContext request, ClientResponseContext response) throws IOException {
+        Object property = request.getProperty(REQUEST_PROPERTY);
+        if (property instanceof TraceEvent.RequestTrace) {
+            TraceEvent.RequestTrace trace = (TraceEvent.RequestTrace) property;
+            trace.status = response.getStatus();
+            trace.serverNanos = System.nanoTime() - trace.sentNanos;
+        }
+    }
+}
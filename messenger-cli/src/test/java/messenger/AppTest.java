@@ -21,7 +21,12 @@ import com.ditavision.messengerengine.mmp.response.MMPRecipientStatus;
 import com.ditavision.messengerengine.mmp.response.MMPStatusReportDetail;
 import java.io.BufferedReader;
 import java.io.PrintStream;
+import java.net.ConnectException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -53,6 +58,8 @@ public class AppTest {
         mockExitHelper = mock(SystemExitHelper.class);
         doNothing().when(mockExitHelper).exit(anyInt());
         PowerMockito.whenNew(SystemExitHelper.class).withNoArguments().thenReturn(mockExitHelper);
+        App.STATUS_CACHE_DIR = Files.createTempDirectory("status");
+        App.IDEMPOTENCY_INDEX_FILE = Files.createTempDirectory("idempotency").resolve("idempotency");
     }
     
     @Test
@@ -149,6 +156,16 @@ public class AppTest {
         assertThat(argumentMap.get("-u"), is("me"));
     }
 
+    @Test
+    public void arrayToMapScheduleLast() {
+        String[] args = {"-f", "file", "--schedule"};
+        Map<String, String> argumentMap = App.arrayToMap(args);
+        assertNotNull(argumentMap);
+        assertThat(argumentMap.size(), is(2));
+        assertTrue(argumentMap.get("--schedule").isEmpty());
+        assertThat(argumentMap.get("-f"), is("file"));
+    }
+
     @Test
     public void arrayToMapHelpLast() {
         String[] args = {"--init", "-h"};
@@ -179,6 +196,16 @@ public class AppTest {
         action = App.argumentsToAction(arguments);
         assertThat(action, is(Arguments.STATUS_ACTION));
 
+        arguments.clear();
+        arguments.put("--schedule", "");
+        action = App.argumentsToAction(arguments);
+        assertThat(action, is(Arguments.SCHEDULE_ACTION));
+
+        arguments.clear();
+        arguments.put("--settle", "");
+        action = App.argumentsToAction(arguments);
+        assertThat(action, is(Arguments.SETTLE_ACTION));
+
         arguments.clear();
         arguments.put("-UNKNOWN-", null);
         action = App.argumentsToAction(arguments);
@@ -238,6 +265,129 @@ public class AppTest {
         verify(mockExitHelper).exit(eq(0));
     }
     
+    @Test
+    public void mainScheduleUsage() {
+        PrintStream stream = Mockito.mock(PrintStream.class);
+        System.setOut(stream);
+        App.main(new String[]{"-h", "--schedule"});
+        verifyUsageHeader(stream);
+        verify(stream).println(Matchers.argThat(containsString("--schedule [")));
+        verify(stream).println(Matchers.argThat(containsString("-s:")));
+        verify(stream).println(Matchers.argThat(containsString("-u:")));
+        verify(stream).println(Matchers.argThat(containsString("-p:")));
+        verify(stream).println(Matchers.argThat(containsString("-f:")));
+        verify(mockExitHelper).exit(eq(0));
+    }
+
+    @Test
+    public void mainSettleUsage() {
+        PrintStream stream = Mockito.mock(PrintStream.class);
+        System.setOut(stream);
+        App.main(new String[]{"-h", "--settle"});
+        verifyUsageHeader(stream);
+        verify(stream).println(Matchers.argThat(containsString("--settle [")));
+        verify(stream).println(Matchers.argThat(containsString("-id:")));
+        verify(stream).println(Matchers.argThat(containsString("--idempotency-key:")));
+        verify(stream).println(Matchers.argThat(containsString("-f:")));
+        verify(mockExitHelper).exit(eq(0));
+    }
+
+    @Test
+    public void mainScheduleMessageOk() throws Exception {
+        Path file = Files.createTempDirectory("schedule").resolve("schedule");
+        PrintStream stream = Mockito.mock(PrintStream.class);
+        System.setOut(stream);
+
+        App.main(new String[]{"--send", "--at", "2015-12-24T17:00:00Z", "-f", file.toString(), "-m", "message", "-t", "to"});
+        Collection<ScheduledMessage> pending = new Schedule(file).load();
+        assertThat(pending.size(), is(1));
+        assertThat(pending.iterator().next().getDueMillis(), is(1450976400000L));
+        verify(stream).println(Matchers.argThat(containsString("Schedule id: ")));
+        verify(mockExitHelper).exit(eq(0));
+    }
+
+    @Test
+    public void mainScheduleMessageInvalidTime() throws Exception {
+        doThrow(new MessengerEngineException("exit", "test")).when(mockExitHelper).exit(eq(1));
+        PrintStream stream = Mockito.mock(PrintStream.class);
+        System.setOut(stream);
+        try {
+            App.main(new String[]{"--send", "--at", "tomorrow", "-m", "message", "-t", "to"});
+            fail("MessengerEngineException expected!");
+        } catch (MessengerEngineException ex) {
+            assertEquals("exit", ex.getCode());
+        }
+        verify(mockExitHelper).exit(eq(1));
+    }
+
+    @Test
+    public void mainScheduleMessageTooFarAhead() throws Exception {
+        doThrow(new MessengerEngineException("exit", "test")).when(mockExitHelper).exit(eq(1));
+        Path file = Files.createTempDirectory("schedule").resolve("schedule");
+        PrintStream stream = Mockito.mock(PrintStream.class);
+        System.setOut(stream);
+        try {
+            App.main(new String[]{"--send", "--at", "2500-01-01T00:00:00Z", "-f", file.toString(), "-m", "message", "-t", "to"});
+            fail("MessengerEngineException expected!");
+        } catch (MessengerEngineException ex) {
+            assertEquals("exit", ex.getCode());
+        }
+        verify(stream).println(Matchers.argThat(containsString("too far in the future")));
+        assertThat(Files.exists(file), is(false));
+    }
+
+    @Test
+    public void mainScheduleBatch() throws Exception {
+        Path dir = Files.createTempDirectory("schedule");
+        Path batch = dir.resolve("batch");
+        Files.write(batch, Arrays.asList("# reminders", "2015-12-24T17:00:00Z\t+1\tfirst", "", "2015-12-24T18:00:00Z\t+2,+3\tsecond"));
+        Path file = dir.resolve("schedule");
+        PrintStream stream = Mockito.mock(PrintStream.class);
+        System.setOut(stream);
+
+        App.main(new String[]{"--batch", batch.toString(), "-f", file.toString()});
+        List<ScheduledMessage> pending = new ArrayList<>(new Schedule(file).load());
+        assertThat(pending.size(), is(2));
+        assertThat(pending.get(1).getRecipients(), is(Arrays.asList("+2", "+3")));
+        verify(stream).println(Matchers.argThat(containsString("Scheduled messages: 2")));
+        verify(mockExitHelper).exit(eq(0));
+    }
+
+    @Test
+    public void mainScheduleBatchInvalidLine() throws Exception {
+        doThrow(new MessengerEngineException("exit", "test")).when(mockExitHelper).exit(eq(1));
+        Path dir = Files.createTempDirectory("schedule");
+        Path batch = dir.resolve("batch");
+        Files.write(batch, Arrays.asList("2015-12-24T17:00:00Z\t+1\tfirst", "tomorrow\t+2\tsecond"));
+        Path file = dir.resolve("schedule");
+        PrintStream stream = Mockito.mock(PrintStream.class);
+        System.setOut(stream);
+        try {
+            App.main(new String[]{"--batch", batch.toString(), "-f", file.toString()});
+            fail("MessengerEngineException expected!");
+        } catch (MessengerEngineException ex) {
+            assertEquals("exit", ex.getCode());
+        }
+        verify(stream).printf(anyString(), eq(2), eq(batch), anyString());
+        assertThat(Files.exists(file), is(false));
+    }
+
+    @Test
+    public void mainScheduleMessageWithUser() throws Exception {
+        doThrow(new MessengerEngineException("exit", "test")).when(mockExitHelper).exit(eq(1));
+        Path file = Files.createTempDirectory("schedule").resolve("schedule");
+        PrintStream stream = Mockito.mock(PrintStream.class);
+        System.setOut(stream);
+        try {
+            App.main(new String[]{"--send", "--at", "2015-12-24T17:00:00Z", "-f", file.toString(), "-u", "user", "-m", "message", "-t", "to"});
+            fail("MessengerEngineException expected!");
+        } catch (MessengerEngineException ex) {
+            assertEquals("exit", ex.getCode());
+        }
+        verify(stream).println(Matchers.argThat(containsString("-u cannot be combined with --at")));
+        assertThat(Files.exists(file), is(false));
+    }
+    
     @Test
     public void mainRegisterOkVerificationOk() throws Exception {
         MessengerEngine mockEngine = mock(MessengerEngine.class);
@@ -307,6 +457,90 @@ public class AppTest {
         verify(mockExitHelper).exit(eq(0));
     }
     
+    @Test
+    public void mainSendMessageIdempotent() throws Exception {
+        MessengerEngine mockEngine = mock(MessengerEngine.class);
+        doReturn("msgId").when(mockEngine).sendMessage(anyString(), anyString(), anyString(), anyString(), anyList());
+        PowerMockito.whenNew(MessengerEngine.class).withNoArguments().thenReturn(mockEngine);
+        PrintStream stream = Mockito.mock(PrintStream.class);
+        System.setOut(stream);
+
+        String[] args = {"-u", "user", "-s", "server", "-p", "password", "-m", "message", "-t", "to", "--idempotency-key", "key"};
+        App.main(args);
+        App.main(args);
+        verify(mockEngine, times(1)).sendMessage(eq("server"), eq("user"), eq("password"), eq("message"), anyList());
+        verify(stream).println(Matchers.argThat(containsString("succeeded. Message id: msgId")));
+        verify(stream).println(Matchers.argThat(containsString("skipped. Message id: msgId")));
+    }
+
+    @Test
+    public void mainSendMessageNokReleasesIdempotencyKey() throws Exception {
+        MessengerEngineException refused = new MessengerEngineException("error", "test");
+        refused.initCause(new ConnectException("Connection refused"));
+        MessengerEngine mockEngine = mock(MessengerEngine.class);
+        doThrow(refused).doReturn("msgId").when(mockEngine).sendMessage(anyString(), anyString(), anyString(), anyString(), anyList());
+        PowerMockito.whenNew(MessengerEngine.class).withNoArguments().thenReturn(mockEngine);
+        PrintStream stream = Mockito.mock(PrintStream.class);
+        System.setOut(stream);
+
+        String[] args = {"-u", "user", "-s", "server", "-p", "password", "-m", "message", "-t", "to", "--idempotency-key", "auto"};
+        App.main(args);
+        App.main(args);
+        verify(mockEngine, times(2)).sendMessage(eq("server"), eq("user"), eq("password"), eq("message"), anyList());
+        verify(stream).println(Matchers.argThat(containsString("succeeded. Message id: msgId")));
+    }
+
+    @Test
+    public void mainSendMessageNokKeepsIdempotencyKeyUntilSettled() throws Exception {
+        MessengerEngine mockEngine = mock(MessengerEngine.class);
+        doThrow(new MessengerEngineException("timeout", "test")).doReturn("other").when(mockEngine).sendMessage(anyString(), anyString(), anyString(), anyString(), anyList());
+        PowerMockito.whenNew(MessengerEngine.class).withNoArguments().thenReturn(mockEngine);
+        PrintStream stream = Mockito.mock(PrintStream.class);
+        System.setOut(stream);
+
+        String[] args = {"-u", "user", "-s", "server", "-p", "password", "-m", "message", "-t", "to", "--idempotency-key", "key"};
+        App.main(args);
+        App.main(args);
+        verify(mockEngine, times(1)).sendMessage(eq("server"), eq("user"), eq("password"), eq("message"), anyList());
+        verify(stream, times(2)).println(Matchers.argThat(containsString("--settle -id MESSAGE_ID|none --idempotency-key key")));
+
+        App.main(new String[]{"--settle", "-id", "msgId", "--idempotency-key", "key"});
+        App.main(args);
+        verify(mockEngine, times(1)).sendMessage(eq("server"), eq("user"), eq("password"), eq("message"), anyList());
+        verify(stream).println(Matchers.argThat(containsString("skipped. Message id: msgId")));
+    }
+
+    @Test
+    public void mainSettleScheduledMessageNotAccepted() throws Exception {
+        Path file = Files.createTempDirectory("schedule").resolve("schedule");
+        Schedule schedule = new Schedule(file);
+        ScheduledMessage scheduled = schedule.add(1000, "message", App.split("to"));
+        schedule.markUnknown(scheduled.getId());
+        new IdempotencyIndex(App.IDEMPOTENCY_INDEX_FILE).reserve(Scheduler.idempotencyKey(scheduled), 1000);
+        PrintStream stream = Mockito.mock(PrintStream.class);
+        System.setOut(stream);
+
+        App.main(new String[]{"--settle", "-f", file.toString()});
+        verify(stream).format(anyString(), eq(Scheduler.idempotencyKey(scheduled)), any(), eq("to"), eq("message"));
+        App.main(new String[]{"--settle", "-id", "none", "--idempotency-key", Scheduler.idempotencyKey(scheduled), "-f", file.toString()});
+        assertThat(schedule.unknown().isEmpty(), is(true));
+        assertThat(new Schedule(file).load().size(), is(1));
+        assertThat(new IdempotencyIndex(App.IDEMPOTENCY_INDEX_FILE).lookup(Scheduler.idempotencyKey(scheduled)), nullValue());
+    }
+
+    @Test
+    public void idempotencyKeyAuto() {
+        List<String> recipients = App.split("b,a");
+        String key = App.idempotencyKey("auto", "user", "message", recipients);
+        assertTrue(key.startsWith("auto:"));
+        assertThat(App.idempotencyKey("auto", "user", "message", App.split("a,b")), is(key));
+        assertThat(App.idempotencyKey("auto", "user", "other", recipients), not(key));
+        assertThat(App.idempotencyKey("key", "user", "message", recipients), is("key"));
+        assertThat(App.idempotencyKey(null, "user", "message", recipients), nullValue());
+        assertThat(App.idempotencyWindowMillis("auto", "60"), is(60_000L));
+        assertThat(App.idempotencyWindowMillis("key", "60"), is(Long.MAX_VALUE));
+    }
+    
     @Test
     public void mainSendMessageNok() throws Exception {
         MessengerEngine mockEngine = mock(MessengerEngine.class);
@@ -350,6 +584,35 @@ public class AppTest {
         verify(mockExitHelper).exit(eq(0));
     }
     
+    @Test
+    public void mainGetStatusFinalCached() throws Exception {
+        MMPStatusReportDetail detail = new MMPStatusReportDetail();
+        detail.setMessageId("msgId");
+        List<MMPRecipientStatus> recipientList = new ArrayList<>();
+        MMPRecipientStatus recipient = new MMPRecipientStatus();
+        recipient.setMsisdn("to");
+        recipient.setStatusId("statusId");
+        recipient.setStatus("Delivered");
+        recipientList.add(recipient);
+        detail.setRecipients(recipientList);
+        List<MMPStatusReportDetail> reports = new ArrayList<>();
+        reports.add(detail);
+
+        MessengerEngine mockEngine = mock(MessengerEngine.class);
+        doReturn(reports).when(mockEngine).statusReports(anyString(), anyString(), anyString(), anyList());
+        PowerMockito.whenNew(MessengerEngine.class).withNoArguments().thenReturn(mockEngine);
+        PrintStream stream = Mockito.mock(PrintStream.class);
+        System.setOut(stream);
+
+        App.main(new String[]{"--status", "-u", "user", "-s", "server", "-p", "password", "-id", "msgId"});
+        App.main(new String[]{"--status", "-u", "user", "-s", "server", "-p", "password", "-id", "msgId"});
+        App.main(new String[]{"--status", "-u", "other", "-s", "server", "-p", "password", "-id", "msgId"});
+        verify(mockEngine, times(1)).statusReports(eq("server"), eq("user"), eq("password"), anyList());
+        verify(mockEngine, times(1)).statusReports(eq("server"), eq("other"), eq("password"), anyList());
+        verify(stream, times(3)).format(anyString(), eq("msgId"), eq("to"), eq("statusId"), eq("Delivered"));
+        verify(stream).printf(anyString(), eq(1), eq(0));
+    }
+    
     @Test
     public void mainGetStatusNok() throws Exception {
         MessengerEngine mockEngine = mock(MessengerEngine.class);
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2015 Dirk Franssen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package messenger;
+
+import com.ditavision.messengerengine.MessengerEngineException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author dfranssen
+ */
+public class IdempotencyIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    Path file;
+    IdempotencyIndex index;
+
+    @Before
+    public void setup() {
+        file = folder.getRoot().toPath().resolve("idempotency");
+        index = new IdempotencyIndex(file);
+    }
+
+    /**
+     * Corrupts the message id of the slot holding the key, as a crash halfway writing it would.
+     */
+    private void tear(String key) throws IOException {
+        byte[] content = Files.readAllBytes(file);
+        byte[] digest = IdempotencyIndex.digest(key);
+        for (int offset = IdempotencyIndex.HEADER_SIZE; offset < content.length; offset += IdempotencyIndex.SLOT_SIZE) {
+            if (Arrays.equals(Arrays.copyOfRange(content, offset + 1, offset + 1 + digest.length), digest)) {
+                content[offset + IdempotencyIndex.SLOT_SIZE - 8] ^= 1;
+                Files.write(file, content);
+                return;
+            }
+        }
+        fail("key not found");
+    }
+
+    @Test
+    public void reserveNewKey() throws Exception {
+        assertThat(index.reserve("key", 1), nullValue());
+    }
+
+    @Test
+    public void reservedKeyIsPending() throws Exception {
+        index.reserve("key", 1);
+        IdempotencyIndex.Entry earlier = index.reserve("key", 2);
+        assertNotNull(earlier);
+        assertThat(earlier.isSent(), is(false));
+        assertThat(earlier.getMillis(), is(1L));
+    }
+
+    @Test
+    public void recordedKeyReturnsMessageId() throws Exception {
+        index.reserve("key", 1);
+        index.record("key", "msgId", 2);
+        IdempotencyIndex.Entry earlier = index.reserve("key", 3);
+        assertThat(earlier.isSent(), is(true));
+        assertThat(earlier.getMessageId(), is("msgId"));
+        assertThat(earlier.getMillis(), is(2L));
+    }
+
+    @Test
+    public void releasedKeyCanBeReservedAgain() throws Exception {
+        index.reserve("key", 1);
+        index.release("key");
+        assertThat(index.reserve("key", 2), nullValue());
+    }
+
+    @Test
+    public void earlierSendExpiresAfterWindow() throws Exception {
+        index.reserve("key", 1000, 60_000);
+        index.record("key", "msgId", 2000);
+        assertThat(index.reserve("key", 61_999, 60_000).getMessageId(), is("msgId"));
+        assertThat(index.reserve("key", 62_000, 60_000), nullValue());
+        assertThat(index.lookup("key").isPending(), is(true));
+    }
+
+    @Test
+    public void pendingSendDoesNotExpire() throws Exception {
+        index.reserve("key", 1000, 60_000);
+        IdempotencyIndex.Entry earlier = index.reserve("key", 1_000_000, 60_000);
+        assertNotNull(earlier);
+        assertThat(earlier.isPending(), is(true));
+        assertThat(earlier.getMillis(), is(1000L));
+    }
+
+    @Test
+    public void tornSlotIsPending() throws Exception {
+        index.reserve("key", 1);
+        index.record("key", "msgId", 2);
+        tear("key");
+        IdempotencyIndex.Entry earlier = index.reserve("key", 3);
+        assertNotNull(earlier);
+        assertThat(earlier.isPending(), is(true));
+        index.record("key", "msgId", 4);
+        assertThat(index.reserve("key", 5).getMessageId(), is("msgId"));
+    }
+
+    @Test
+    public void tornSlotSurvivesGrowing() throws Exception {
+        index.reserve("torn", 1);
+        index.record("torn", "msgId", 2);
+        tear("torn");
+        for (int i = 0; i < IdempotencyIndex.INITIAL_CAPACITY; i++) {
+            index.record("key" + i, "id" + i, i);
+        }
+        assertThat(index.lookup("torn").isPending(), is(true));
+    }
+
+    @Test
+    public void lookupDoesNotReserve() throws Exception {
+        assertThat(index.lookup("key"), nullValue());
+        assertThat(index.reserve("key", 1), nullValue());
+        index.release("key");
+        assertThat(index.lookup("key"), nullValue());
+    }
+
+    @Test
+    public void notAccepted() {
+        MessengerEngineException refused = new MessengerEngineException("error", "test");
+        refused.initCause(new IllegalStateException(new ConnectException("Connection refused")));
+        assertThat(IdempotencyIndex.notAccepted(refused, Collections.emptySet()), is(true));
+        assertThat(IdempotencyIndex.notAccepted(new MessengerEngineException("timeout", "test"), Collections.emptySet()), is(false));
+        assertThat(IdempotencyIndex.notAccepted(new MessengerEngineException("E1", "test"), new HashSet<>(Arrays.asList("E1"))), is(true));
+    }
+
+    @Test
+    public void keysSurviveGrowing() throws Exception {
+        int keys = IdempotencyIndex.INITIAL_CAPACITY * 2;
+        for (int i = 0; i < keys; i++) {
+            index.record("key" + i, "id" + i, i);
+        }
+        for (int i = 0; i < keys; i++) {
+            assertThat(index.reserve("key" + i, 0).getMessageId(), is("id" + i));
+        }
+    }
+
+    @Test
+    public void rebuildDropsExpiredAndReleasedKeys() throws Exception {
+        index.record("kept", "msgId", 0);
+        index.reserve("pending", 0, 1000);
+        index.reserve("released", 0);
+        index.release("released");
+        for (int i = 0; i < IdempotencyIndex.INITIAL_CAPACITY / 2; i++) {
+            index.reserve("auto" + i, 0, 1000);
+            index.record("auto" + i, "id" + i, 0);
+        }
+        assertThat(index.lookup("kept").getMessageId(), is("msgId"));
+        assertThat(index.lookup("pending").isPending(), is(true));
+        assertThat(index.lookup("released"), nullValue());
+        assertThat(index.lookup("auto0"), nullValue());
+        assertThat(Files.size(file), is((long) IdempotencyIndex.HEADER_SIZE + IdempotencyIndex.INITIAL_CAPACITY * IdempotencyIndex.SLOT_SIZE));
+    }
+
+    @Test(expected = IOException.class)
+    public void messageIdTooLong() throws Exception {
+        char[] id = new char[IdempotencyIndex.MAX_MESSAGE_ID_BYTES + 1];
+        Arrays.fill(id, 'x');
+        index.record("key", new String(id), 0);
+    }
+}
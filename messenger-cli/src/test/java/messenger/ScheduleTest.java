@@ -0,0 +1,174 @@
+/*
+ * Copyright 2015 Dirk Franssen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package messenger;
+
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author dfranssen
+ */
+public class ScheduleTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    Path file;
+
+    @Before
+    public void setup() {
+        file = folder.getRoot().toPath().resolve("schedule");
+    }
+
+    @Test
+    public void loadSkipsSentMessages() throws Exception {
+        Schedule schedule = new Schedule(file);
+        ScheduledMessage sent = schedule.add(1000, "sent", Arrays.asList("+1"));
+        ScheduledMessage pending = schedule.add(2000, "multi\tline\nmessage", Arrays.asList("+2", "+3"));
+        schedule.markSent(sent.getId(), "msgId");
+
+        List<ScheduledMessage> loaded = new ArrayList<>(new Schedule(file).load());
+        assertThat(loaded.size(), is(1));
+        assertThat(loaded.get(0).getId(), is(pending.getId()));
+        assertThat(loaded.get(0).getDueMillis(), is(2000L));
+        assertThat(loaded.get(0).getMessage(), is("multi\tline\nmessage"));
+        assertThat(loaded.get(0).getRecipients(), is(Arrays.asList("+2", "+3")));
+    }
+
+    @Test
+    public void loadCompactsJournal() throws Exception {
+        Schedule schedule = new Schedule(file);
+        ScheduledMessage sent = schedule.add(1000, "sent", Arrays.asList("+1"));
+        schedule.markSent(sent.getId(), "msgId");
+        schedule.load();
+        assertThat(Files.size(file), is(0L));
+    }
+
+    @Test
+    public void pollReturnsMessagesAddedAfterLoad() throws Exception {
+        Schedule scheduler = new Schedule(file);
+        scheduler.load();
+        ScheduledMessage added = new Schedule(file).add(1000, "later", Arrays.asList("+1"));
+        scheduler.markSent("other", "msgId");
+
+        List<ScheduledMessage> polled = scheduler.poll();
+        assertThat(polled.size(), is(1));
+        assertThat(polled.get(0).getId(), is(added.getId()));
+        assertThat(scheduler.poll().isEmpty(), is(true));
+    }
+
+    @Test
+    public void runLockIsAcquired() throws Exception {
+        Schedule schedule = new Schedule(file);
+        FileLock lock = schedule.tryLockForRun();
+        assertNotNull(lock);
+        lock.channel().close();
+    }
+
+    @Test
+    public void parseTimeWithOffset() {
+        assertThat(Schedule.parseTime("2015-12-24T18:00:00+01:00"), is(1450976400000L));
+        assertThat(Schedule.parseTime("2015-12-24T17:00:00Z"), is(1450976400000L));
+    }
+
+    @Test
+    public void parseEntry() {
+        ScheduledMessage entry = Schedule.parseEntry("2015-12-24T17:00:00Z\t+1,+2\tHello\tworld", 0);
+        assertThat(entry.getDueMillis(), is(1450976400000L));
+        assertThat(entry.getRecipients(), is(Arrays.asList("+1", "+2")));
+        assertThat(entry.getMessage(), is("Hello\tworld"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseEntryWithoutMessage() {
+        Schedule.parseEntry("2015-12-24T17:00:00Z\t+1", 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseEntryTooFarAhead() {
+        Schedule.parseEntry("2500-01-01T00:00:00Z\t+1\tHello", 0);
+    }
+
+    @Test
+    public void addAllInOneAppend() throws Exception {
+        Schedule schedule = new Schedule(file);
+        schedule.add(1000, "first", Arrays.asList("+1"));
+        schedule.addAll(Arrays.asList(
+                Schedule.parseEntry("2015-12-24T17:00:00Z\t+2\tsecond", 0),
+                Schedule.parseEntry("2015-12-24T18:00:00Z\t+3\tthird", 0)));
+
+        List<ScheduledMessage> loaded = new ArrayList<>(new Schedule(file).load());
+        assertThat(loaded.size(), is(3));
+        assertThat(loaded.get(1).getMessage(), is("second"));
+        assertThat(loaded.get(2).getMessage(), is("third"));
+    }
+
+    @Test
+    public void parseAddIgnoresTruncatedRecord() {
+        String record = Schedule.seal("A\tid\t10\t+1\tSGVsbG8gd29ybGQ=");
+        assertThat(Schedule.parseAdd(record).getMessage(), is("Hello world"));
+        assertThat(Schedule.parseAdd("A\tid\t10\t+1\tSGVsbG8gd29y"), nullValue());
+        assertThat(Schedule.parseAdd(record.substring(0, record.length() - 1)), nullValue());
+        assertThat(Schedule.parseAdd(Schedule.seal("A\tid\tnot-a-number\t+1\tYQ==")), nullValue());
+    }
+
+    @Test
+    public void appendAfterTruncatedRecord() throws Exception {
+        Schedule schedule = new Schedule(file);
+        ScheduledMessage sent = schedule.add(1000, "sent", Arrays.asList("+1"));
+        Files.write(file, ("S\t" + sent.getId()).getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        ScheduledMessage added = schedule.add(2000, "added", Arrays.asList("+2"));
+
+        List<ScheduledMessage> loaded = new ArrayList<>(new Schedule(file).load());
+        assertThat(loaded.size(), is(2));
+        assertThat(loaded.get(0).getId(), is(sent.getId()));
+        assertThat(loaded.get(1).getId(), is(added.getId()));
+    }
+
+    @Test
+    public void unknownMessageIsSetAsideUntilAddedAgain() throws Exception {
+        Schedule schedule = new Schedule(file);
+        ScheduledMessage unknown = schedule.add(1000, "unknown", Arrays.asList("+1"));
+        schedule.markUnknown(unknown.getId());
+        assertThat(new Schedule(file).load().isEmpty(), is(true));
+        assertThat(schedule.unknown().iterator().next().getId(), is(unknown.getId()));
+
+        schedule.addAgain(unknown);
+        assertThat(schedule.unknown().isEmpty(), is(true));
+        assertThat(new Schedule(file).load().iterator().next().getId(), is(unknown.getId()));
+    }
+
+    @Test
+    public void loadSkipsFailedMessages() throws Exception {
+        Schedule schedule = new Schedule(file);
+        ScheduledMessage failed = schedule.add(1000, "failed", Arrays.asList("+1"));
+        schedule.markFailed(failed.getId(), "code");
+        assertThat(new Schedule(file).load().isEmpty(), is(true));
+    }
+}
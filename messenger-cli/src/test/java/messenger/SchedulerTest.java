@@ -0,0 +1,175 @@
+/*
+ * Copyright 2015 Dirk Franssen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package messenger;
+
+import com.ditavision.messengerengine.MessengerEngine;
+import com.ditavision.messengerengine.MessengerEngineException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author dfranssen
+ */
+public class SchedulerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    Schedule schedule;
+    IdempotencyIndex index;
+    MessengerEngine engine;
+    Scheduler scheduler;
+    long now;
+
+    @Before
+    public void setup() {
+        schedule = new Schedule(folder.getRoot().toPath().resolve("schedule"));
+        index = new IdempotencyIndex(folder.getRoot().toPath().resolve("idempotency"));
+        engine = mock(MessengerEngine.class);
+        scheduler = new Scheduler(schedule, index, engine, "server", "user", "password");
+        now = System.currentTimeMillis();
+    }
+
+    @Test
+    public void batchesBySameMessage() {
+        ScheduledMessage a = message("a", "hello", "+1");
+        ScheduledMessage b = message("b", "other", "+2");
+        ScheduledMessage c = message("c", "hello", "+3");
+        ScheduledMessage d = message("d", "hello", "+1");
+        List<List<ScheduledMessage>> batches = Scheduler.batches(Arrays.asList(a, b, c, d), Collections.emptySet());
+        assertThat(batches, is(Arrays.asList(Arrays.asList(a, c), Arrays.asList(d), Arrays.asList(b))));
+    }
+
+    @Test
+    public void batchesSendFailedMessagesAlone() {
+        ScheduledMessage a = message("a", "hello", "+1");
+        ScheduledMessage b = message("b", "hello", "+2");
+        ScheduledMessage c = message("c", "hello", "+3");
+        List<List<ScheduledMessage>> batches = Scheduler.batches(Arrays.asList(a, b, c), new HashSet<>(Arrays.asList("b")));
+        assertThat(batches, is(Arrays.asList(Arrays.asList(b), Arrays.asList(a, c))));
+    }
+
+    @Test
+    public void sendsDueMessages() throws Exception {
+        doReturn("msgId").when(engine).sendMessage(anyString(), anyString(), anyString(), anyString(), anyList());
+        ScheduledMessage first = schedule.add(now, "hello", Arrays.asList("+1"));
+        ScheduledMessage second = schedule.add(now, "hello", Arrays.asList("+2"));
+        schedule.add(now + 60_000, "later", Arrays.asList("+3"));
+
+        scheduler.tick(now);
+        verify(engine).sendMessage("server", "user", "password", "hello", Arrays.asList("+1", "+2"));
+        assertThat(scheduler.pending(), is(1));
+        assertThat(index.reserve(Scheduler.idempotencyKey(first), now).getMessageId(), is("msgId"));
+        assertThat(index.reserve(Scheduler.idempotencyKey(second), now).getMessageId(), is("msgId"));
+        assertThat(new Schedule(schedule.getFile()).load().size(), is(1));
+    }
+
+    @Test
+    public void failedBatchIsRetriedMessageByMessage() throws Exception {
+        doThrow(refused()).doReturn("msgId1").doReturn("msgId2").
+                when(engine).sendMessage(anyString(), anyString(), anyString(), anyString(), anyList());
+        schedule.add(now, "hello", Arrays.asList("+1"));
+        schedule.add(now, "hello", Arrays.asList("+2"));
+
+        scheduler.tick(now);
+        assertThat(scheduler.pending(), is(2));
+        scheduler.tick(now + Scheduler.RETRY_DELAY_MILLIS);
+        verify(engine).sendMessage("server", "user", "password", "hello", Arrays.asList("+1", "+2"));
+        verify(engine).sendMessage("server", "user", "password", "hello", Arrays.asList("+1"));
+        verify(engine).sendMessage("server", "user", "password", "hello", Arrays.asList("+2"));
+        assertThat(scheduler.pending(), is(0));
+        assertThat(new Schedule(schedule.getFile()).load().isEmpty(), is(true));
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() throws Exception {
+        doThrow(refused()).
+                when(engine).sendMessage(anyString(), anyString(), anyString(), anyString(), anyList());
+        schedule.add(now, "hello", Arrays.asList("+1"));
+
+        long time = now;
+        for (int i = 0; i < Scheduler.MAX_ATTEMPTS; i++) {
+            scheduler.tick(time);
+            time += Scheduler.RETRY_DELAY_MILLIS << i;
+        }
+        verify(engine, times(Scheduler.MAX_ATTEMPTS)).sendMessage(anyString(), anyString(), anyString(), anyString(), anyList());
+        assertThat(scheduler.pending(), is(0));
+        assertThat(new Schedule(schedule.getFile()).load().isEmpty(), is(true));
+    }
+
+    @Test
+    public void possiblyAcceptedMessageIsSetAside() throws Exception {
+        doThrow(new MessengerEngineException("timeout", "test")).
+                when(engine).sendMessage(anyString(), anyString(), anyString(), anyString(), anyList());
+        ScheduledMessage unknown = schedule.add(now, "hello", Arrays.asList("+1"));
+
+        scheduler.tick(now);
+        scheduler.tick(now + Scheduler.RETRY_DELAY_MILLIS);
+        verify(engine, times(1)).sendMessage(anyString(), anyString(), anyString(), anyString(), anyList());
+        assertThat(scheduler.pending(), is(0));
+        assertThat(schedule.unknown().iterator().next().getId(), is(unknown.getId()));
+        assertThat(index.lookup(Scheduler.idempotencyKey(unknown)).isPending(), is(true));
+    }
+
+    @Test
+    public void interruptedSendIsSetAside() throws Exception {
+        ScheduledMessage unknown = schedule.add(now, "hello", Arrays.asList("+1"));
+        index.reserve(Scheduler.idempotencyKey(unknown), now);
+
+        scheduler.tick(now);
+        verify(engine, never()).sendMessage(anyString(), anyString(), anyString(), anyString(), anyList());
+        assertThat(schedule.unknown().iterator().next().getId(), is(unknown.getId()));
+    }
+
+    @Test
+    public void alreadySentMessageIsOnlyMarked() throws Exception {
+        ScheduledMessage sent = schedule.add(now, "hello", Arrays.asList("+1"));
+        index.record(Scheduler.idempotencyKey(sent), "msgId", now);
+
+        scheduler.tick(now);
+        verify(engine, never()).sendMessage(anyString(), anyString(), anyString(), anyString(), anyList());
+        assertThat(new Schedule(schedule.getFile()).load().isEmpty(), is(true));
+    }
+
+    @Test
+    public void farFutureMessageIsParked() throws Exception {
+        schedule.add(Long.MAX_VALUE / 2, "hello", Arrays.asList("+1"));
+        scheduler.tick(now);
+        assertThat(scheduler.pending(), is(1));
+    }
+
+    static MessengerEngineException refused() {
+        MessengerEngineException ex = new MessengerEngineException("error", "test");
+        ex.initCause(new ConnectException("Connection refused"));
+        return ex;
+    }
+
+    static ScheduledMessage message(String id, String message, String... recipients) {
+        return new ScheduledMessage(id, 0, message, new ArrayList<>(Arrays.asList(recipients)));
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015 Dirk Franssen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package messenger;
+
+import com.ditavision.messengerengine.mmp.response.MMPRecipientStatus;
+import com.ditavision.messengerengine.mmp.response.MMPStatusReportDetail;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author dfranssen
+ */
+public class StatusCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    Path file;
+
+    @Before
+    public void setup() {
+        file = folder.getRoot().toPath().resolve("status");
+    }
+
+    @Test
+    public void finalStatusNeverExpires() throws Exception {
+        StatusCache cache = cache(1000);
+        cache.put(report("id", "delivered"), 0);
+        assertNotNull(cache.get("id", Long.MAX_VALUE));
+        assertThat(cache.getHits(), is(1));
+        assertThat(cache.getMisses(), is(0));
+    }
+
+    @Test
+    public void inFlightStatusExpiresAfterTtl() throws Exception {
+        StatusCache cache = cache(1000);
+        cache.put(report("id", "delivered", "pending"), 0);
+        assertNotNull(cache.get("id", 999));
+        assertThat(cache.get("id", 1000), nullValue());
+        assertThat(cache.getHits(), is(1));
+        assertThat(cache.getMisses(), is(1));
+    }
+
+    @Test
+    public void finalRecipientIsNotOverwritten() throws Exception {
+        StatusCache cache = cache(1000);
+        cache.put(report("id", "delivered", "pending"), 0);
+        cache.put(report("id", "pending", "failed"), 10);
+        MMPStatusReportDetail detail = cache.get("id", 20);
+        assertThat(detail.getRecipients().get(0).getStatus(), is("delivered"));
+        assertThat(detail.getRecipients().get(1).getStatus(), is("failed"));
+        assertNotNull(cache.get("id", Long.MAX_VALUE));
+    }
+
+    @Test
+    public void inFlightIsBounded() throws Exception {
+        StatusCache cache = new StatusCache(file, 1000, 2, new HashSet<>(StatusCache.DEFAULT_FINAL_STATUSES));
+        cache.put(report("a", "pending"), 0);
+        cache.put(report("b", "pending"), 0);
+        cache.get("a", 0);
+        cache.put(report("c", "pending"), 0);
+        assertNotNull(cache.get("a", 0));
+        assertThat(cache.get("b", 0), nullValue());
+        assertNotNull(cache.get("c", 0));
+    }
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        StatusCache cache = cache(1000);
+        cache.put(report("final", "delivered"), 0);
+        cache.put(report("expired", "pending"), 0);
+        cache.put(report("fresh", "pending"), 500);
+        cache.save(1200);
+
+        StatusCache loaded = cache(1000);
+        loaded.load();
+        assertNotNull(loaded.get("final", 5000));
+        assertThat(loaded.get("expired", 0), nullValue());
+        assertNotNull(loaded.get("fresh", 1200));
+    }
+
+    @Test
+    public void saveReplacesFileWithoutLeavingTemporaryFiles() throws Exception {
+        StatusCache first = cache(1000);
+        first.put(report("first", "delivered"), 0);
+        first.save(0);
+        StatusCache second = cache(1000);
+        second.put(report("second", "delivered"), 0);
+        second.save(0);
+
+        StatusCache loaded = cache(1000);
+        loaded.load();
+        assertThat(loaded.get("first", 0), nullValue());
+        assertNotNull(loaded.get("second", 0));
+        try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+            assertThat(files.filter(f -> f.toString().endsWith(".tmp")).count(), is(0L));
+        }
+    }
+
+    @Test
+    public void reportWithoutRecipientsIsNotFinal() throws Exception {
+        StatusCache cache = cache(1000);
+        cache.put(report("id"), 0);
+        assertNotNull(cache.get("id", 999));
+        assertThat(cache.get("id", 1000), nullValue());
+    }
+
+    @Test
+    public void filePerServerAndUser() {
+        Path dir = folder.getRoot().toPath();
+        assertThat(StatusCache.file(dir, "server", "user"), is(StatusCache.file(dir, "server", "user")));
+        assertThat(StatusCache.file(dir, "server", "user"), not(StatusCache.file(dir, "server", "other")));
+        assertThat(StatusCache.file(dir, "server", "user"), not(StatusCache.file(dir, "other", "user")));
+        assertThat(StatusCache.file(dir, "server", "user").getParent(), is(dir));
+    }
+
+    StatusCache cache(long ttlMillis) {
+        return new StatusCache(file, ttlMillis, StatusCache.MAX_IN_FLIGHT, new HashSet<>(StatusCache.DEFAULT_FINAL_STATUSES));
+    }
+
+    static MMPStatusReportDetail report(String messageId, String... statuses) {
+        List<MMPRecipientStatus> recipients = new ArrayList<>();
+        for (int i = 0; i < statuses.length; i++) {
+            MMPRecipientStatus recipient = new MMPRecipientStatus();
+            recipient.setMsisdn("+3249500000" + i);
+            recipient.setStatusId(String.valueOf(i));
+            recipient.setStatus(statuses[i]);
+            recipients.add(recipient);
+        }
+        MMPStatusReportDetail detail = new MMPStatusReportDetail();
+        detail.setMessageId(messageId);
+        detail.setRecipients(recipients);
+        return detail;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 Dirk Franssen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package messenger;
+
+import java.util.List;
+import org.junit.Test;
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author dfranssen
+ */
+public class TimerWheelTest {
+
+    @Test
+    public void expiresAtDeadline() {
+        TimerWheel<String> wheel = new TimerWheel<>(1000, 0);
+        wheel.add(5000, "a");
+        assertThat(wheel.advance(4999).isEmpty(), is(true));
+        assertThat(wheel.advance(5000), is(asList("a")));
+        assertThat(wheel.size(), is(0));
+    }
+
+    @Test
+    public void overdueExpiresOnNextAdvance() {
+        TimerWheel<String> wheel = new TimerWheel<>(1000, 10_000);
+        wheel.add(3000, "a");
+        assertThat(wheel.size(), is(1));
+        assertThat(wheel.advance(10_000), is(asList("a")));
+    }
+
+    @Test
+    public void cascadesFromHigherLevels() {
+        TimerWheel<Long> wheel = new TimerWheel<>(1, 0);
+        long[] deadlines = {1, 255, 256, 257, 65_535, 65_536, 70_000, 16_777_216, 16_800_000};
+        for (long deadline : deadlines) {
+            wheel.add(deadline, deadline);
+        }
+        for (long deadline : deadlines) {
+            assertThat(wheel.advance(deadline - 1).isEmpty(), is(true));
+            assertThat(wheel.advance(deadline), is(asList(deadline)));
+        }
+        assertThat(wheel.size(), is(0));
+    }
+
+    @Test
+    public void keepsAllEntries() {
+        TimerWheel<Integer> wheel = new TimerWheel<>(1, 0);
+        for (int i = 0; i < 100_000; i++) {
+            wheel.add((i * 7919L) % 300_000, i);
+        }
+        List<Integer> expired = wheel.advance(300_000);
+        assertThat(expired.size(), is(100_000));
+        assertThat(wheel.size(), is(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDeadlineOutOfRange() {
+        new TimerWheel<String>(1, 0).add(1L << 32, "a");
+    }
+
+    @Test
+    public void acceptsMaxDeadline() {
+        TimerWheel<String> wheel = new TimerWheel<>(10, 1000);
+        wheel.add(wheel.maxDeadlineMillis(), "a");
+        assertThat(wheel.size(), is(1));
+        try {
+            wheel.add(wheel.maxDeadlineMillis() + 10, "b");
+            fail("IllegalArgumentException expected!");
+        } catch (IllegalArgumentException ex) {
+            assertThat(wheel.size(), is(1));
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015 Dirk Franssen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package messenger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientResponseContext;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.WriterInterceptorContext;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.core.StringContains.containsString;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author dfranssen
+ */
+public class TraceFilterTest {
+
+    @Test
+    public void ignoresRequestsOutsideTracedCall() throws Exception {
+        ClientRequestContext request = mock(ClientRequestContext.class);
+        new TraceFilter().filter(request);
+        verify(request, never()).setProperty(anyString(), any());
+    }
+
+    @Test
+    public void measuresTracedRequest() throws Exception {
+        TraceEvent event = new TraceEvent("correlation", "sendMessage");
+        MultivaluedMap<String, Object> headers = mock(MultivaluedMap.class);
+        ClientRequestContext request = mock(ClientRequestContext.class);
+        when(request.getMethod()).thenReturn("POST");
+        when(request.getUri()).thenReturn(URI.create("http://localhost/mmp"));
+        when(request.getHeaders()).thenReturn(headers);
+        TraceFilter filter = new TraceFilter();
+
+        Trace.CURRENT.set(event);
+        try {
+            filter.filter(request);
+        } finally {
+            Trace.CURRENT.remove();
+        }
+        ArgumentCaptor<Object> property = ArgumentCaptor.forClass(Object.class);
+        verify(request).setProperty(eq(TraceFilter.REQUEST_PROPERTY), property.capture());
+        verify(headers).putSingle(TraceFilter.CORRELATION_ID_HEADER, "correlation");
+        TraceEvent.RequestTrace trace = (TraceEvent.RequestTrace) property.getValue();
+        assertTrue(trace.sentNanos > 0);
+
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        OutputStream[] current = {sent};
+        WriterInterceptorContext writer = mock(WriterInterceptorContext.class);
+        when(writer.getProperty(TraceFilter.REQUEST_PROPERTY)).thenReturn(trace);
+        when(writer.getOutputStream()).thenAnswer(invocation -> current[0]);
+        doAnswer(invocation -> current[0] = (OutputStream) invocation.getArguments()[0]).when(writer).setOutputStream(Mockito.any(OutputStream.class));
+        doAnswer(invocation -> {
+            current[0].write("payload".getBytes(StandardCharsets.UTF_8));
+            return null;
+        }).when(writer).proceed();
+        filter.aroundWriteTo(writer);
+        assertThat(sent.toString("UTF-8"), is("payload"));
+        assertThat(trace.bytes, is(7L));
+        assertTrue(trace.serializeNanos >= 0);
+        assertTrue(trace.connectNanos >= 0);
+
+        ClientResponseContext response = mock(ClientResponseContext.class);
+        when(response.getStatus()).thenReturn(200);
+        when(request.getProperty(TraceFilter.REQUEST_PROPERTY)).thenReturn(trace);
+        filter.filter(request, response);
+        event.finish("OK");
+
+        String json = event.toJson(true);
+        assertThat(json, containsString("\"correlationId\":\"correlation\""));
+        assertThat(json, containsString("\"payloadBytes\":7"));
+        assertThat(json, containsString("\"status\":200"));
+        assertThat(json, containsString("\"serverMs\":"));
+        assertThat(json, not(containsString("\"dnsMs\"")));
+        assertThat(event.toJson(false), not(containsString("\"requests\"")));
+    }
+
+    @Test
+    public void callWithoutTracing() {
+        assertThat(Trace.call("operation", () -> "result"), is("result"));
+        assertThat(Trace.current(), nullValue());
+    }
+
+    @Test
+    public void escapesJson() {
+        TraceEvent event = new TraceEvent("id", "op\"\n");
+        event.finish("OK");
+        assertThat(event.toJson(false), containsString("\"operation\":\"op\\\"\\n\""));
+    }
+}
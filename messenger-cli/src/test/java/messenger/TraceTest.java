@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 Dirk Franssen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package messenger;
+
+import com.ditavision.messengerengine.MessengerEngineException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.core.StringContains.containsString;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author dfranssen
+ */
+public class TraceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        Trace.close();
+    }
+
+    @Test
+    public void writesOneLinePerCall() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("trace").resolve("trace.log");
+        Trace.enable(file, 50);
+        assertTrue(Trace.isEnabled());
+
+        assertThat(Trace.call("fast", () -> "result"), is("result"));
+        Trace.run("slow", () -> {
+            Trace.current().startRequest("POST", "http://localhost/mmp");
+            try {
+                Thread.sleep(60);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        try {
+            Trace.call("failing", () -> {
+                throw new MessengerEngineException("E42", "test");
+            });
+            fail("MessengerEngineException expected!");
+        } catch (MessengerEngineException ex) {
+            assertEquals("E42", ex.getCode());
+        }
+        assertThat(Trace.current(), nullValue());
+        Trace.close();
+        assertFalse(Trace.isEnabled());
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertThat(lines.size(), is(3));
+        assertThat(lines.get(0), containsString("\"operation\":\"fast\""));
+        assertThat(lines.get(0), containsString("\"outcome\":\"OK\""));
+        assertThat(lines.get(0), not(containsString("\"requests\"")));
+        assertThat(lines.get(1), containsString("\"operation\":\"slow\""));
+        assertThat(lines.get(1), containsString("\"requestCount\":1"));
+        assertThat(lines.get(1), containsString("\"slow\":true,\"requests\":[{\"method\":\"POST\""));
+        assertThat(lines.get(2), containsString("\"outcome\":\"E42\""));
+        assertThat(lines.get(2), not(containsString("\"requests\"")));
+    }
+
+    @Test
+    public void callAfterCloseIsNotTraced() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("trace.log");
+        Trace.enable(file, 0);
+        Trace.close();
+        assertThat(Trace.call("operation", () -> "result"), is("result"));
+        assertThat(Files.readAllLines(file, StandardCharsets.UTF_8).isEmpty(), is(true));
+    }
+}